@@ -19,17 +19,26 @@
 
 package com.simiacryptus.mindseye.eval;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.simiacryptus.lang.TimedResult;
 import com.simiacryptus.lang.UncheckedSupplier;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.PointSample;
 import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.opt.Step;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 /**
@@ -42,6 +51,9 @@ public abstract class BatchedTrainable extends TrainableWrapper<DataTrainable> i
    */
   protected final int batchSize;
   private boolean verbose = false;
+  private int parallelism = 1;
+  @Nullable
+  private ExecutorService pool = null;
 
   /**
    * Instantiates a new Batched trainable.
@@ -91,6 +103,35 @@ public abstract class BatchedTrainable extends TrainableWrapper<DataTrainable> i
     this.verbose = verbose;
   }
 
+  /**
+   * Gets parallelism.
+   *
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the number of batches evaluated concurrently. With a parallelism above one, each worker
+   * thread evaluates its batches through its own inner trainable and accumulates them into its own
+   * gradient buffer; the worker results are merged by a pairwise in-place reduction.
+   * <p>
+   * The worker trainables share the network, so its layers are evaluated by several threads at once
+   * and must be safe for concurrent evaluation, as the layers of this library are. Calls to the
+   * training monitor from the workers are serialized.
+   *
+   * @param parallelism the parallelism
+   */
+  public synchronized void setParallelism(int parallelism) {
+    if (parallelism < 1) throw new IllegalArgumentException("parallelism = " + parallelism);
+    if (parallelism != this.parallelism && null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.parallelism = parallelism;
+  }
+
   @Override
   public PointSample measure(@Nullable final TrainingMonitor monitor) {
     @Nonnull final RefList<Tensor[]> tensors = RefArrays.asList(getData());
@@ -102,6 +143,13 @@ public abstract class BatchedTrainable extends TrainableWrapper<DataTrainable> i
             final int batches = (int) Math.ceil(size * 1.0 / batchSize);
             final int evenBatchSize = (int) Math.ceil(size * 1.0 / batches);
             @Nonnull final RefList<RefList<Tensor[]>> collection = RefLists.partition(tensors.addRef(), evenBatchSize);
+            if (parallelism > 1 && collection.size() > 1) {
+              final DataTrainable first = newWorkerTrainable();
+              if (null != first) {
+                RefUtil.freeRef(inner);
+                return measureParallel(collection, first, monitor);
+              }
+            }
             PointSample temp_36_0001 = RefUtil.get(collection.stream()
                 .map(RefUtil.wrapInterface((Function<RefList<Tensor[]>, PointSample>) trainingData -> {
                   if (batchSize < trainingData.size()) {
@@ -143,6 +191,10 @@ public abstract class BatchedTrainable extends TrainableWrapper<DataTrainable> i
 
   public @SuppressWarnings("unused")
   void _free() {
+    if (null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
     super._free();
   }
 
@@ -152,4 +204,175 @@ public abstract class BatchedTrainable extends TrainableWrapper<DataTrainable> i
   BatchedTrainable addRef() {
     return (BatchedTrainable) super.addRef();
   }
+
+  /**
+   * Creates a thread-confined trainable equivalent to the inner trainable, used by one worker of a
+   * parallel measurement. Returns null if the inner trainable cannot be replicated, in which case
+   * batches are evaluated sequentially.
+   *
+   * @return the data trainable
+   */
+  @Nullable
+  protected DataTrainable newWorkerTrainable() {
+    DataTrainable inner = getInner();
+    try {
+      if (null == inner || inner.getClass() != BasicTrainable.class) return null;
+      BasicTrainable basicTrainable = (BasicTrainable) inner;
+      BasicTrainable worker = new BasicTrainable(basicTrainable.getLayer());
+      worker.setMask(basicTrainable.getMask());
+      worker.setVerbosity(basicTrainable.verbosity());
+      return worker;
+    } finally {
+      RefUtil.freeRef(inner);
+    }
+  }
+
+  @Nonnull
+  private synchronized ExecutorService getPool() {
+    if (null == pool) {
+      pool = Executors.newFixedThreadPool(parallelism,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat(getClass().getSimpleName() + "-%d").build());
+    }
+    return pool;
+  }
+
+  @Nonnull
+  private PointSample measureParallel(@Nonnull final RefList<RefList<Tensor[]>> batches, @Nonnull final DataTrainable first,
+                                      @Nullable final TrainingMonitor monitor) {
+    final int workerCount = Math.min(parallelism, batches.size());
+    final List<DataTrainable> workers = new ArrayList<>(workerCount);
+    workers.add(first);
+    final TrainingMonitor workerMonitor = null == monitor ? null : new SynchronizedMonitor(monitor);
+    final AtomicInteger next = new AtomicInteger(0);
+    final ExecutorService executor = getPool();
+    final List<CompletableFuture<PointSample>> futures = new ArrayList<>(workerCount);
+    try {
+      while (workers.size() < workerCount) {
+        final DataTrainable worker = newWorkerTrainable();
+        if (null == worker) break;
+        workers.add(worker);
+      }
+      for (DataTrainable worker : workers) {
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          PointSample accumulator = null;
+          try {
+            for (int index = next.getAndIncrement(); index < batches.size(); index = next.getAndIncrement()) {
+              worker.setData(batches.get(index));
+              final PointSample measure = worker.measure(workerMonitor);
+              worker.setData(new RefArrayList<>());
+              if (null == accumulator) {
+                accumulator = measure;
+              } else {
+                final PointSample sum = accumulator.addInPlace(measure);
+                accumulator.freeRef();
+                accumulator = sum;
+              }
+            }
+            return accumulator;
+          } catch (Throwable e) {
+            // Release the partial sum and the failed batch; the other workers stop at the next batch
+            next.set(batches.size());
+            RefUtil.freeRef(accumulator);
+            worker.setData(new RefArrayList<>());
+            throw e;
+          }
+        }, executor));
+      }
+      final List<PointSample> samples = new ArrayList<>(workers.size());
+      Throwable error = null;
+      for (CompletableFuture<PointSample> future : futures) {
+        try {
+          final PointSample sample = future.join();
+          if (null != sample) samples.add(sample);
+        } catch (CompletionException e) {
+          if (null == error) error = e.getCause();
+        }
+      }
+      if (null != error || samples.isEmpty()) {
+        samples.forEach(sample -> sample.freeRef());
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        throw new RuntimeException(error);
+      }
+      return reduce(samples, executor);
+    } finally {
+      workers.forEach(worker -> worker.freeRef());
+      batches.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static PointSample reduce(@Nonnull final List<PointSample> samples, @Nonnull final ExecutorService executor) {
+    List<PointSample> level = samples;
+    while (level.size() > 1) {
+      final List<CompletableFuture<PointSample>> merged = new ArrayList<>((level.size() + 1) / 2);
+      for (int i = 0; i + 1 < level.size(); i += 2) {
+        final PointSample left = level.get(i);
+        final PointSample right = level.get(i + 1);
+        merged.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return left.addInPlace(right);
+          } finally {
+            left.freeRef();
+          }
+        }, executor));
+      }
+      final List<PointSample> nextLevel = new ArrayList<>(merged.size() + 1);
+      Throwable error = null;
+      for (CompletableFuture<PointSample> future : merged) {
+        try {
+          nextLevel.add(future.join());
+        } catch (CompletionException e) {
+          if (null == error) error = e.getCause();
+        }
+      }
+      if (level.size() % 2 == 1) {
+        nextLevel.add(level.get(level.size() - 1));
+      }
+      if (null != error) {
+        // Every merge has finished, so the completed sums can be released before rethrowing
+        nextLevel.forEach(sample -> sample.freeRef());
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        throw new RuntimeException(error);
+      }
+      level = nextLevel;
+    }
+    return level.get(0);
+  }
+
+  private static final class SynchronizedMonitor extends TrainingMonitor {
+    @Nonnull
+    private final TrainingMonitor inner;
+
+    private SynchronizedMonitor(@Nonnull final TrainingMonitor inner) {
+      this.inner = inner;
+    }
+
+    @Override
+    public void clear() {
+      synchronized (inner) {
+        inner.clear();
+      }
+    }
+
+    @Override
+    public void log(final String msg) {
+      synchronized (inner) {
+        inner.log(msg);
+      }
+    }
+
+    @Override
+    public void onStepComplete(@Nullable final Step currentPoint) {
+      synchronized (inner) {
+        inner.onStepComplete(currentPoint);
+      }
+    }
+
+    @Override
+    public boolean onStepFail(@Nullable final Step currentPoint) {
+      synchronized (inner) {
+        return inner.onStepFail(currentPoint);
+      }
+    }
+  }
 }
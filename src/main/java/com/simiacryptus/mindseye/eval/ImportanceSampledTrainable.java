@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.eval;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A sampled trainable which draws each training sample set in proportion to the most recently
+ * observed loss of each item, so that compute is concentrated on items the network has not yet
+ * learned. Each drawn item is weighted by the inverse of its selection probability, which keeps the
+ * measured value and gradient unbiased estimates of the full-dataset mean.
+ * <p>
+ * Losses are updated from every measurement. Items not yet evaluated are assumed to have the
+ * largest known loss. Selection probabilities are mixed with a uniform distribution to bound the
+ * item weights, and the losses of all items can be re-evaluated periodically to correct stale
+ * estimates.
+ */
+public class ImportanceSampledTrainable extends ReferenceCountingBase implements SampledTrainable, TrainableDataMask {
+
+  @Nonnull
+  private final Layer network;
+  @Nonnull
+  private final Tensor[][] data;
+  @Nonnull
+  private final double[] losses;
+  private int trainingSize;
+  private double uniformMix = 0.1;
+  private int refreshInterval = 0;
+  private int reseedCount = 0;
+  private int verbosity = 0;
+  @Nullable
+  private boolean[] mask = null;
+  @Nonnull
+  private int[] sampleIndices = new int[]{};
+  @Nonnull
+  private double[] sampleWeights = new double[]{};
+
+  /**
+   * Instantiates a new Importance sampled trainable.
+   *
+   * @param data         the data
+   * @param network      the network
+   * @param trainingSize the training size
+   */
+  public ImportanceSampledTrainable(@Nonnull final Tensor[][] data, @Nonnull final Layer network, final int trainingSize) {
+    if (0 == data.length) {
+      RefUtil.freeRef(data);
+      network.freeRef();
+      throw new IllegalArgumentException();
+    }
+    this.network = network;
+    this.data = data;
+    this.losses = new double[data.length];
+    Arrays.fill(losses, Double.NaN);
+    this.trainingSize = trainingSize;
+    reseed(RefSystem.nanoTime());
+  }
+
+  @Override
+  public int getTrainingSize() {
+    return Math.max(1, Math.min(trainingSize, data.length));
+  }
+
+  @Override
+  public synchronized void setTrainingSize(final int trainingSize) {
+    this.trainingSize = trainingSize;
+    draw(RefSystem.nanoTime());
+  }
+
+  /**
+   * Gets uniform mix.
+   *
+   * @return the uniform mix
+   */
+  public double getUniformMix() {
+    return uniformMix;
+  }
+
+  /**
+   * Sets the fraction of the selection probability spread uniformly over all items. This bounds the
+   * weight of any drawn item by the inverse of this fraction.
+   *
+   * @param uniformMix the uniform mix
+   */
+  public void setUniformMix(double uniformMix) {
+    if (!(uniformMix > 0 && uniformMix <= 1)) throw new IllegalArgumentException("uniformMix = " + uniformMix);
+    this.uniformMix = uniformMix;
+  }
+
+  /**
+   * Gets refresh interval.
+   *
+   * @return the refresh interval
+   */
+  public int getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * Sets the number of reseeds between full re-evaluations of all item losses. Zero disables
+   * periodic refresh.
+   *
+   * @param refreshInterval the refresh interval
+   */
+  public void setRefreshInterval(int refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * Sets verbosity.
+   *
+   * @param verbosity the verbosity
+   */
+  public void setVerbosity(int verbosity) {
+    this.verbosity = verbosity;
+  }
+
+  /**
+   * Gets the last observed loss of each item; NaN for items not yet evaluated.
+   *
+   * @return the losses
+   */
+  @Nonnull
+  public synchronized double[] getLosses() {
+    return losses.clone();
+  }
+
+  @Override
+  public Layer getLayer() {
+    return network.addRef();
+  }
+
+  @Nullable
+  @Override
+  public boolean[] getMask() {
+    return mask;
+  }
+
+  @Override
+  public void setMask(final boolean... mask) {
+    this.mask = mask;
+  }
+
+  @Nonnull
+  @Override
+  public SampledCachedTrainable<? extends SampledTrainable> cached() {
+    return new SampledCachedTrainable<>(this.addRef());
+  }
+
+  @Override
+  public synchronized boolean reseed(final long seed) {
+    reseedCount++;
+    if (0 < refreshInterval && 0 == reseedCount % refreshInterval) {
+      refreshLosses();
+    }
+    draw(seed);
+    return true;
+  }
+
+  /**
+   * Re-evaluates the loss of every item, in batches of the training size.
+   */
+  public synchronized void refreshLosses() {
+    final int batchSize = getTrainingSize();
+    final int columns = data[0].length;
+    for (int from = 0; from < data.length; from += batchSize) {
+      final int to = Math.min(data.length, from + batchSize);
+      final TensorList[] inputs = new TensorList[columns];
+      for (int col = 0; col < columns; col++) {
+        final Tensor[] tensors = new Tensor[to - from];
+        for (int i = from; i < to; i++) {
+          tensors[i - from] = data[i][col].addRef();
+        }
+        inputs[col] = new TensorArray(tensors);
+      }
+      final TensorList output = network.infer(inputs);
+      try {
+        for (int i = from; i < to; i++) {
+          final Tensor tensor = output.get(i - from);
+          losses[i] = tensor.sum();
+          tensor.freeRef();
+        }
+      } finally {
+        output.freeRef();
+      }
+    }
+  }
+
+  @Override
+  public synchronized PointSample measure(@Nullable final TrainingMonitor monitor) {
+    final int count = sampleIndices.length;
+    final int columns = data[0].length;
+    final Result[] inputs = new Result[columns];
+    for (int col = 0; col < columns; col++) {
+      final Tensor[] tensors = new Tensor[count];
+      for (int j = 0; j < count; j++) {
+        tensors[j] = data[sampleIndices[j]][col].addRef();
+      }
+      if (null == mask || col >= mask.length || !mask[col]) {
+        inputs[col] = new ConstantResult(new TensorArray(tensors));
+      } else {
+        inputs[col] = new MutableResult(tensors);
+      }
+    }
+    final Result result = network.eval(inputs);
+    assert result != null;
+    final TensorList resultData = result.getData();
+    double sum = 0;
+    final Tensor[] weights = new Tensor[count];
+    for (int j = 0; j < count; j++) {
+      final Tensor tensor = resultData.get(j);
+      final double loss = tensor.sum();
+      losses[sampleIndices[j]] = loss;
+      sum += sampleWeights[j] * loss;
+      final Tensor weight = new Tensor(tensor.getDimensions());
+      weight.setAll(sampleWeights[j] / count);
+      weights[j] = weight;
+      tensor.freeRef();
+    }
+    resultData.freeRef();
+    @Nonnull final DeltaSet<UUID> deltaSet = new DeltaSet<UUID>();
+    result.accumulate(deltaSet.addRef(), new TensorArray(weights));
+    result.freeRef();
+    if (null != monitor && verbosity > 1) {
+      monitor.log(RefString.format("Evaluated %s importance-weighted items; mean %s", count, sum / count));
+    }
+    return new PointSample(deltaSet.addRef(), new StateSet<>(deltaSet), sum / count, 0.0, 1);
+  }
+
+  public void _free() {
+    RefUtil.freeRef(data);
+    network.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ImportanceSampledTrainable addRef() {
+    return (ImportanceSampledTrainable) super.addRef();
+  }
+
+  private void draw(final long seed) {
+    final int items = data.length;
+    final int count = getTrainingSize();
+    double maxKnown = 0;
+    for (double loss : losses) {
+      if (Double.isFinite(loss)) maxKnown = Math.max(maxKnown, Math.abs(loss));
+    }
+    final double prior = 0 < maxKnown ? maxKnown : 1.0;
+    final double[] cumulative = new double[items];
+    double total = 0;
+    for (int i = 0; i < items; i++) {
+      final double loss = losses[i];
+      total += Double.isFinite(loss) ? Math.abs(loss) : prior;
+      cumulative[i] = total;
+    }
+    final Random random = new Random(seed);
+    final int[] indices = new int[count];
+    final double[] weights = new double[count];
+    for (int j = 0; j < count; j++) {
+      final int index;
+      if (!(total > 0) || random.nextDouble() < uniformMix) {
+        index = random.nextInt(items);
+      } else {
+        final int position = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+        index = Math.min(items - 1, position < 0 ? -position - 1 : position);
+      }
+      final double loss = losses[index];
+      final double share = total > 0 ? (Double.isFinite(loss) ? Math.abs(loss) : prior) / total : 1.0 / items;
+      final double probability = total > 0 ? (1 - uniformMix) * share + uniformMix / items : 1.0 / items;
+      indices[j] = index;
+      weights[j] = 1.0 / (items * probability);
+    }
+    sampleIndices = indices;
+    sampleWeights = weights;
+  }
+}
@@ -29,7 +29,6 @@ import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.ref.wrappers.RefCollection;
 import com.simiacryptus.ref.wrappers.RefCollectors;
 import com.simiacryptus.ref.wrappers.RefList;
-import com.simiacryptus.ref.wrappers.RefMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -71,9 +70,7 @@ public abstract class L12Normalizer extends TrainableBase {
     assert inner != null;
     DAGNetwork layer = (DAGNetwork) inner.getLayer();
     if (null == layer) return null;
-    RefMap<UUID, Layer> layersById = layer.getLayersById();
-    Layer temp_01_0004 = layersById.get(id);
-    layersById.freeRef();
+    Layer temp_01_0004 = layer.getLayerById(id);
     layer.freeRef();
     return temp_01_0004;
   }
@@ -19,6 +19,7 @@
 
 package com.simiacryptus.mindseye.eval;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.ref.lang.RefUtil;
@@ -28,8 +29,11 @@ import com.simiacryptus.util.function.WeakCachedSupplier;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Random;
-import java.util.function.Supplier;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The type Sampled array trainable.
@@ -42,6 +46,11 @@ public class SampledArrayTrainable extends TrainableWrapper<ArrayTrainable>
   private int minSamples = 0;
   private long seed = Util.R.get().nextInt();
   private int trainingSize;
+  private int lookahead = 0;
+  @Nullable
+  private ExecutorService prefetchExecutor = null;
+  private final Deque<Prefetch> prefetched = new ArrayDeque<>();
+  private final AtomicReference<int[]> spareOrder = new AtomicReference<>();
 
   /**
    * Instantiates a new Sampled array trainable.
@@ -132,15 +141,52 @@ public class SampledArrayTrainable extends TrainableWrapper<ArrayTrainable>
     this.minSamples = minSamples;
   }
 
+  /**
+   * Gets lookahead.
+   *
+   * @return the lookahead
+   */
+  public int getLookahead() {
+    return lookahead;
+  }
+
+  /**
+   * Sets the number of sample sets drawn and materialized ahead of time on a background thread.
+   * When positive, each {@link #reseed(long)} swaps in the oldest prefetched sample set and
+   * schedules a replacement, so that sampling and data loading overlap with training.
+   * Zero disables prefetching.
+   *
+   * @param lookahead the lookahead
+   */
+  public synchronized void setLookahead(int lookahead) {
+    if (lookahead < 0) throw new IllegalArgumentException("lookahead = " + lookahead);
+    this.lookahead = lookahead;
+    while (prefetched.size() > lookahead) {
+      discard(prefetched.pollLast());
+    }
+    if (0 == lookahead) {
+      if (null != prefetchExecutor) {
+        prefetchExecutor.shutdown();
+        prefetchExecutor = null;
+      }
+    } else {
+      fillPrefetch();
+    }
+  }
+
   @Override
   public int getTrainingSize() {
     return Math.max(minSamples, Math.min(trainingData.size(), trainingSize));
   }
 
   @Override
-  public void setTrainingSize(final int trainingSize) {
+  public synchronized void setTrainingSize(final int trainingSize) {
     this.trainingSize = trainingSize;
     refreshSampledData();
+    while (!prefetched.isEmpty()) {
+      discard(prefetched.poll());
+    }
+    fillPrefetch();
   }
 
   private void setSeed(final int newValue) {
@@ -158,7 +204,11 @@ public class SampledArrayTrainable extends TrainableWrapper<ArrayTrainable>
 
   @Override
   public boolean reseed(final long seed) {
-    setSeed(Util.R.get().nextInt());
+    if (0 < lookahead) {
+      swapPrefetched();
+    } else {
+      setSeed(Util.R.get().nextInt());
+    }
     ArrayTrainable temp_00_0004 = getInner();
     assert temp_00_0004 != null;
     temp_00_0004.reseed(seed);
@@ -169,6 +219,20 @@ public class SampledArrayTrainable extends TrainableWrapper<ArrayTrainable>
 
   public @SuppressWarnings("unused")
   void _free() {
+    synchronized (this) {
+      while (!prefetched.isEmpty()) {
+        final Prefetch prefetch = prefetched.poll();
+        try {
+          RefUtil.freeRef(prefetch.future.join());
+        } catch (RuntimeException e) {
+          // The sample is discarded either way
+        }
+      }
+      if (null != prefetchExecutor) {
+        prefetchExecutor.shutdown();
+        prefetchExecutor = null;
+      }
+    }
     super._free();
     trainingData.freeRef();
   }
@@ -184,44 +248,143 @@ public class SampledArrayTrainable extends TrainableWrapper<ArrayTrainable>
    * Refresh sampled data.
    */
   protected void refreshSampledData() {
-    assert 0 < trainingData.size();
-    Tensor[][] trainingData = null;
-    if (0 < getTrainingSize() && getTrainingSize() < this.trainingData.size() - 1) {
-      @Nonnull final Random random = new Random(seed);
-      if (null != trainingData) RefUtil.freeRef(trainingData);
-      trainingData = RefIntStream.generate(() -> random.nextInt(this.trainingData.size())).distinct()
-          .mapToObj(this.trainingData::get).filter(x -> {
-            if (x != null) {
-              Tensor[] tensors = x.get();
-              try {
-                if (tensors != null) {
-                  return true;
-                }
-              } finally {
-                RefUtil.freeRef(tensors);
-              }
-            }
-            return false;
-          }).limit(getTrainingSize()).map(Supplier::get).toArray(Tensor[][]::new);
-    } else {
-      if (null != trainingData) RefUtil.freeRef(trainingData);
-      trainingData = this.trainingData.stream().filter(refSupplier -> {
-        if (refSupplier != null) {
-          Tensor[] tensors = refSupplier.get();
-          try {
-            if (tensors != null) {
-              return true;
-            }
-          } finally {
-            RefUtil.freeRef(tensors);
-          }
-        }
-        return false;
-      }).limit(getTrainingSize()).map(Supplier::get).toArray(Tensor[][]::new);
-    }
+    setInnerData(sample(seed, getTrainingSize()));
+  }
+
+  private void setInnerData(@Nonnull final Tensor[][] data) {
     ArrayTrainable inner = getInner();
     assert inner != null;
-    inner.setTrainingData(trainingData);
+    inner.setTrainingData(data);
     inner.freeRef();
   }
+
+  /**
+   * Draws a sample set without replacement; suppliers which yield null are skipped and each
+   * supplier is invoked once. Without lookahead, indices are drawn uniformly and duplicates
+   * rejected, which preserves the sample chosen for a given seed by earlier versions. With
+   * lookahead, indices are drawn by a partial Fisher-Yates shuffle. Either way the cost is
+   * proportional to the number of rows drawn rather than to the size of the data set. When the
+   * size leaves nothing to choose, the leading rows are taken, up to the size.
+   *
+   * @param seed the seed
+   * @param size the size
+   * @return the sampled rows
+   */
+  @Nonnull
+  private Tensor[][] sample(final long seed, final int size) {
+    assert 0 < trainingData.size();
+    final int count = trainingData.size();
+    final List<Tensor[]> rows = new ArrayList<>(Math.min(size, count));
+    if (!(0 < size && size < count - 1)) {
+      final int limit = Math.min(size, count);
+      for (int i = 0; i < count && rows.size() < limit; i++) {
+        addRow(rows, i);
+      }
+    } else if (0 == lookahead) {
+      final Random r = new Random(seed);
+      final Set<Integer> drawn = new HashSet<>();
+      while (rows.size() < size && drawn.size() < count) {
+        final int index = r.nextInt(count);
+        if (drawn.add(index)) addRow(rows, index);
+      }
+    } else {
+      sampleShuffled(new Random(seed), size, rows);
+    }
+    return rows.toArray(new Tensor[][]{});
+  }
+
+  /**
+   * Draws rows by a partial Fisher-Yates shuffle of a persistent index permutation. The swaps are
+   * undone afterwards, so the permutation is the identity between draws and the sample depends
+   * only on the seed. Concurrent draws use a temporary permutation.
+   */
+  private void sampleShuffled(@Nonnull final Random r, final int size, @Nonnull final List<Tensor[]> rows) {
+    final int count = trainingData.size();
+    int[] order = spareOrder.getAndSet(null);
+    if (null == order) {
+      order = new int[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+    }
+    int[] swaps = new int[Math.min(count, size)];
+    int drawn = 0;
+    try {
+      while (drawn < count && rows.size() < size) {
+        final int j = drawn + r.nextInt(count - drawn);
+        if (drawn == swaps.length) swaps = Arrays.copyOf(swaps, Math.min(count, 2 * swaps.length));
+        swaps[drawn] = j;
+        swap(order, drawn, j);
+        addRow(rows, order[drawn]);
+        drawn++;
+      }
+    } finally {
+      for (int i = drawn - 1; i >= 0; i--) {
+        swap(order, i, swaps[i]);
+      }
+      spareOrder.set(order);
+    }
+  }
+
+  private void addRow(@Nonnull final List<Tensor[]> rows, final int index) {
+    final RefSupplier<Tensor[]> supplier = trainingData.get(index);
+    if (null == supplier) return;
+    final Tensor[] tensors = supplier.get();
+    RefUtil.freeRef(supplier);
+    if (null != tensors) rows.add(tensors);
+  }
+
+  private static void swap(@Nonnull final int[] order, final int i, final int j) {
+    final int t = order[i];
+    order[i] = order[j];
+    order[j] = t;
+  }
+
+  private synchronized void swapPrefetched() {
+    fillPrefetch();
+    final Prefetch next = prefetched.poll();
+    assert next != null;
+    seed = next.seed;
+    final Tensor[][] data;
+    if (next.size == getTrainingSize()) {
+      data = next.future.join();
+    } else {
+      discard(next);
+      data = sample(seed, getTrainingSize());
+    }
+    setInnerData(data);
+    fillPrefetch();
+  }
+
+  private synchronized void fillPrefetch() {
+    if (0 == lookahead) return;
+    if (null == prefetchExecutor) {
+      prefetchExecutor = Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat(getClass().getSimpleName() + "-prefetch-%d").build());
+    }
+    while (prefetched.size() < lookahead) {
+      final int nextSeed = Util.R.get().nextInt();
+      final int size = getTrainingSize();
+      prefetched.add(new Prefetch(nextSeed, size,
+          CompletableFuture.supplyAsync(() -> sample(nextSeed, size), prefetchExecutor)));
+    }
+  }
+
+  private static void discard(@Nullable final Prefetch prefetch) {
+    if (null == prefetch) return;
+    prefetch.future.thenAccept(data -> RefUtil.freeRef(data));
+  }
+
+  private static final class Prefetch {
+    private final int seed;
+    private final int size;
+    @Nonnull
+    private final CompletableFuture<Tensor[][]> future;
+
+    private Prefetch(final int seed, final int size, @Nonnull final CompletableFuture<Tensor[][]> future) {
+      this.seed = seed;
+      this.size = size;
+      this.future = future;
+    }
+  }
 }
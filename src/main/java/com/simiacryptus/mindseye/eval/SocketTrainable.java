@@ -0,0 +1,726 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.eval;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.*;
+import com.simiacryptus.util.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A data-parallel trainable which shards its data across worker processes connected over TCP.
+ * Each worker holds a copy of the network and one shard of the data, and evaluates its shard with a
+ * {@link BasicTrainable}. On every measurement the current weights are broadcast to all workers and
+ * their gradients are gathered and summed, weighted by shard size, into one point sample whose
+ * deltas target the weights of the local network.
+ * <p>
+ * Workers are started with {@link Worker#main(String[])}, or on the local machine with
+ * {@link #launchLocalWorker(int)}. Weights and gradients are matched by position in
+ * {@link Layer#state()}, so the set of frozen layers must not change after the workers are initialized.
+ * Only weight gradients are gathered, so masks selecting input columns are rejected.
+ * Gradients received from workers are keyed with the ids the local network itself uses, which are
+ * found by evaluating one row locally when the workers are initialized.
+ * <p>
+ * When gradients are compressed, workers carry the compression error over once per step. A
+ * measurement repeated at the weights of the previous measurement, as an
+ * {@link com.simiacryptus.mindseye.opt.IterativeTrainer} does at the start of each iteration, is
+ * the gradient of a step and is compressed with error feedback; the first such measurement after the
+ * weights have moved commits the residuals of the previous step. All other measurements are
+ * line-search probes and are compressed without error feedback.
+ * <p>
+ * Every worker response is a frame holding a status and a length-prefixed payload, and is written only
+ * after the request has been handled completely, so a failure on a worker is reported as an error
+ * frame and leaves the connection usable.
+ */
+public class SocketTrainable extends ReferenceCountingBase implements DataTrainable, TrainableDataMask {
+  private static final Logger log = LoggerFactory.getLogger(SocketTrainable.class);
+  private static final int CMD_INIT = 1;
+  private static final int CMD_MEASURE = 2;
+  private static final int CMD_CLOSE = 3;
+  private static final int STATUS_OK = 0;
+  private static final int STATUS_ERROR = 1;
+  private static final int MEASURE_PROBE = 0;
+  private static final int MEASURE_STEP = 1;
+  private static final int MEASURE_NEXT_STEP = 2;
+
+  @Nonnull
+  private final Layer network;
+  @Nonnull
+  private final InetSocketAddress[] workerAddresses;
+  @Nonnull
+  private final List<Connection> connections = new ArrayList<>();
+  @Nullable
+  private RefList<Tensor[]> data = null;
+  @Nullable
+  private boolean[] mask = null;
+  private boolean initialized = false;
+  @Nullable
+  private UUID[] keys = null;
+  @Nonnull
+  private SerialPrecision gradientPrecision = SerialPrecision.Double;
+  private double gradientDensity = 1.0;
+  private long lastGradientBytes = 0;
+  @Nullable
+  private double[][] lastWeights = null;
+  @Nullable
+  private double[][] stepWeights = null;
+
+  /**
+   * Instantiates a new Socket trainable.
+   *
+   * @param network the network
+   * @param workers the worker addresses
+   */
+  public SocketTrainable(@Nonnull final Layer network, @Nonnull final InetSocketAddress... workers) {
+    if (0 == workers.length) {
+      network.freeRef();
+      throw new IllegalArgumentException("No workers");
+    }
+    this.network = network;
+    this.workerAddresses = workers;
+  }
+
+  @Nonnull
+  @Override
+  public Tensor[][] getData() {
+    assert data != null;
+    return data.toArray(new Tensor[][]{});
+  }
+
+  @Override
+  public synchronized void setData(@Nonnull final RefList<Tensor[]> data) {
+    if (null != this.data)
+      this.data.freeRef();
+    this.data = data;
+    initialized = false;
+  }
+
+  @Override
+  public Layer getLayer() {
+    return network.addRef();
+  }
+
+  @Nullable
+  @Override
+  public boolean[] getMask() {
+    return mask;
+  }
+
+  /**
+   * Sets the mask. Gradients with respect to the data would have to be gathered row by row from the
+   * workers, which is not supported, so a mask selecting any input column is rejected.
+   *
+   * @param mask the mask
+   */
+  @Override
+  public synchronized void setMask(final boolean... mask) {
+    if (null != mask) {
+      for (int i = 0; i < mask.length; i++) {
+        if (mask[i]) {
+          throw new UnsupportedOperationException(RefString.format("Input gradients are not supported; mask selects column %d", i));
+        }
+      }
+    }
+    this.mask = mask;
+    initialized = false;
+  }
+
+  /**
+   * Gets gradient precision.
+   *
+   * @return the gradient precision
+   */
+  @Nonnull
+  public SerialPrecision getGradientPrecision() {
+    return gradientPrecision;
+  }
+
+  /**
+   * Gets gradient density.
+   *
+   * @return the gradient density
+   */
+  public double getGradientDensity() {
+    return gradientDensity;
+  }
+
+  /**
+   * Sets how workers compress the gradients they send. Each gradient buffer is reduced to the given
+   * fraction of its largest entries and quantized to the given precision; workers keep the
+   * compression error and add it to their next gradient.
+   *
+   * @param precision the precision
+   * @param density   the density
+   */
+  public synchronized void setGradientCompression(@Nonnull final SerialPrecision precision, final double density) {
+    if (!(density > 0 && density <= 1)) throw new IllegalArgumentException("density = " + density);
+    this.gradientPrecision = precision;
+    this.gradientDensity = density;
+    initialized = false;
+  }
+
+  /**
+   * Gets the number of gradient bytes received from all workers in the last measurement.
+   *
+   * @return the last gradient bytes
+   */
+  public long getLastGradientBytes() {
+    return lastGradientBytes;
+  }
+
+  /**
+   * Starts a worker in a new JVM on this machine, using the classpath of the current process.
+   *
+   * @param port the port the worker listens on
+   * @return the process
+   * @throws IOException the io exception
+   */
+  @Nonnull
+  public static Process launchLocalWorker(final int port) throws IOException {
+    final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        Worker.class.getName(), Integer.toString(port))
+        .inheritIO()
+        .start();
+  }
+
+  @Override
+  public synchronized PointSample measure(@Nullable final TrainingMonitor monitor) {
+    assert data != null;
+    try {
+      if (!initialized) initialize();
+      final RefList<double[]> state = network.state();
+      final double[][] weights = state.toArray(new double[][]{});
+      state.freeRef();
+      assert keys != null;
+      if (keys.length != weights.length) {
+        throw new IllegalStateException(RefString.format("Expected %d weight arrays, found %d", keys.length, weights.length));
+      }
+      final int mode;
+      if (!Arrays.deepEquals(weights, lastWeights)) {
+        mode = MEASURE_PROBE;
+      } else if (Arrays.deepEquals(weights, stepWeights)) {
+        mode = MEASURE_STEP;
+      } else {
+        mode = MEASURE_NEXT_STEP;
+      }
+      lastWeights = copy(weights);
+      if (MEASURE_PROBE != mode) stepWeights = lastWeights;
+      for (Connection connection : connections) {
+        connection.out.writeInt(CMD_MEASURE);
+        connection.out.writeInt(mode);
+        writeArrays(connection.out, weights);
+        connection.out.flush();
+      }
+      final double[][] gradient = new double[weights.length][];
+      double sum = 0;
+      long count = 0;
+      long gradientBytes = 0;
+      for (byte[] response : readResponses()) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+        final int items = in.readInt();
+        final double mean = in.readDouble();
+        sum += mean * items;
+        count += items;
+        final int deltas = in.readInt();
+        for (int i = 0; i < deltas; i++) {
+          final int index = in.readInt();
+          final byte[] encoded = readBytes(in);
+          gradientBytes += encoded.length;
+          final double[] delta = DeltaCompressor.decode(encoded);
+          if (index < 0 || index >= weights.length || delta.length != weights[index].length) {
+            throw new IllegalStateException(RefString.format("Gradient %d does not match local weights", index));
+          }
+          if (null == keys[index]) {
+            throw new IllegalStateException(RefString.format("Gradient %d has no local key", index));
+          }
+          if (null == gradient[index]) gradient[index] = new double[delta.length];
+          final double[] accumulator = gradient[index];
+          for (int j = 0; j < delta.length; j++) {
+            accumulator[j] += delta[j] * items;
+          }
+        }
+      }
+      if (0 == count) throw new IllegalStateException("No data");
+      lastGradientBytes = gradientBytes;
+      @Nonnull final DeltaSet<UUID> deltaSet = new DeltaSet<UUID>();
+      for (int index = 0; index < gradient.length; index++) {
+        final double[] accumulator = gradient[index];
+        if (null == accumulator) continue;
+        for (int j = 0; j < accumulator.length; j++) {
+          accumulator[j] /= count;
+        }
+        final Delta<UUID> delta = deltaSet.get(keys[index], weights[index]);
+        assert delta != null;
+        delta.addInPlace(accumulator);
+        delta.freeRef();
+      }
+      return new PointSample(deltaSet.addRef(), new StateSet<>(deltaSet), sum / count, 0.0, 1);
+    } catch (IOException e) {
+      closeConnections();
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void _free() {
+    closeConnections();
+    if (null != data) {
+      data.freeRef();
+      data = null;
+    }
+    network.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  SocketTrainable addRef() {
+    return (SocketTrainable) super.addRef();
+  }
+
+  private void initialize() throws IOException {
+    assert data != null;
+    if (data.isEmpty()) throw new IllegalStateException("No data");
+    if (connections.isEmpty()) {
+      for (InetSocketAddress address : workerAddresses) {
+        connections.add(new Connection(new Socket(address.getHostString(), address.getPort())));
+      }
+    }
+    final HashMap<CharSequence, byte[]> resources = new HashMap<>();
+    final byte[] model = network.getJson(resources, SerialPrecision.Double).toString().getBytes(StandardCharsets.UTF_8);
+    final int size = data.size();
+    final int shards = connections.size();
+    for (int shard = 0; shard < shards; shard++) {
+      final DataOutputStream out = connections.get(shard).out;
+      out.writeInt(CMD_INIT);
+      writeBytes(out, model);
+      out.writeInt(resources.size());
+      for (Map.Entry<CharSequence, byte[]> entry : resources.entrySet()) {
+        out.writeUTF(entry.getKey().toString());
+        writeBytes(out, entry.getValue());
+      }
+      writeMask(out, mask);
+      out.writeInt(gradientPrecision.ordinal());
+      out.writeDouble(gradientDensity);
+      final int from = (int) ((long) size * shard / shards);
+      final int to = (int) ((long) size * (shard + 1) / shards);
+      out.writeInt(to - from);
+      for (int i = from; i < to; i++) {
+        final Tensor[] row = data.get(i);
+        out.writeInt(row.length);
+        for (Tensor tensor : row) {
+          writeTensor(out, tensor.addRef());
+        }
+        RefUtil.freeRef(row);
+      }
+      out.flush();
+    }
+    readResponses();
+    keys = localKeys();
+    lastWeights = null;
+    stepWeights = null;
+    initialized = true;
+  }
+
+  /**
+   * Finds the key the local network uses for the gradient of each weight array, by evaluating the
+   * first row of data locally. Arrays without a gradient have a null key.
+   *
+   * @return the keys, by position in {@link Layer#state()}
+   */
+  @Nonnull
+  private UUID[] localKeys() {
+    assert data != null;
+    final RefList<double[]> state = network.state();
+    final double[][] weights = state.toArray(new double[][]{});
+    state.freeRef();
+    final IdentityHashMap<double[], Integer> index = new IdentityHashMap<>();
+    for (int i = 0; i < weights.length; i++) {
+      index.put(weights[i], i);
+    }
+    final UUID[] keys = new UUID[weights.length];
+    final BasicTrainable probe = new BasicTrainable(network.addRef());
+    try {
+      probe.setMask(mask);
+      final RefList<Tensor[]> row = new RefArrayList<>(1);
+      row.add(data.get(0));
+      probe.setData(row);
+      final PointSample sample = probe.measure(null);
+      final RefMap<UUID, Delta<UUID>> map = sample.delta.getMap();
+      sample.freeRef();
+      map.forEach((key, delta) -> {
+        final Integer position = index.get(delta.target);
+        if (null != position) keys[position] = key;
+        delta.freeRef();
+      });
+      map.freeRef();
+    } finally {
+      probe.freeRef();
+    }
+    return keys;
+  }
+
+  /**
+   * Reads one response frame from every worker. All frames are read before any error is raised, so
+   * that every connection stays in step with the protocol.
+   *
+   * @return the payloads, by connection
+   * @throws IOException the io exception
+   */
+  @Nonnull
+  private byte[][] readResponses() throws IOException {
+    final byte[][] responses = new byte[connections.size()][];
+    final StringBuilder errors = new StringBuilder();
+    for (int i = 0; i < responses.length; i++) {
+      final DataInputStream in = connections.get(i).in;
+      final int status = in.readInt();
+      final byte[] payload = readBytes(in);
+      if (STATUS_OK == status) {
+        responses[i] = payload;
+      } else {
+        if (errors.length() > 0) errors.append("; ");
+        errors.append(workerAddresses[i]).append(": ").append(new String(payload, StandardCharsets.UTF_8));
+      }
+    }
+    if (errors.length() > 0) throw new IllegalStateException("Worker error: " + errors);
+    return responses;
+  }
+
+  private void closeConnections() {
+    for (Connection connection : connections) {
+      try {
+        connection.out.writeInt(CMD_CLOSE);
+        connection.out.flush();
+      } catch (IOException e) {
+        log.debug("Error closing worker connection", e);
+      }
+      connection.close();
+    }
+    connections.clear();
+    initialized = false;
+  }
+
+  private static void writeBytes(@Nonnull final DataOutputStream out, @Nonnull final byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeFrame(@Nonnull final DataOutputStream out, final int status, @Nonnull final byte[] bytes) throws IOException {
+    out.writeInt(status);
+    writeBytes(out, bytes);
+  }
+
+  @Nonnull
+  private static byte[] readBytes(@Nonnull final DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  @Nonnull
+  private static double[][] copy(@Nonnull final double[][] arrays) {
+    final double[][] copy = new double[arrays.length][];
+    for (int i = 0; i < arrays.length; i++) {
+      copy[i] = arrays[i].clone();
+    }
+    return copy;
+  }
+
+  private static void writeDoubles(@Nonnull final DataOutputStream out, @Nonnull final double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  @Nonnull
+  private static double[] readDoubles(@Nonnull final DataInputStream in) throws IOException {
+    final double[] values = new double[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readDouble();
+    }
+    return values;
+  }
+
+  private static void writeArrays(@Nonnull final DataOutputStream out, @Nonnull final double[][] arrays) throws IOException {
+    out.writeInt(arrays.length);
+    for (double[] array : arrays) {
+      writeDoubles(out, array);
+    }
+  }
+
+  private static void writeMask(@Nonnull final DataOutputStream out, @Nullable final boolean[] mask) throws IOException {
+    out.writeInt(null == mask ? -1 : mask.length);
+    if (null != mask) {
+      for (boolean b : mask) {
+        out.writeBoolean(b);
+      }
+    }
+  }
+
+  @Nullable
+  private static boolean[] readMask(@Nonnull final DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0) return null;
+    final boolean[] mask = new boolean[length];
+    for (int i = 0; i < length; i++) {
+      mask[i] = in.readBoolean();
+    }
+    return mask;
+  }
+
+  private static void writeTensor(@Nonnull final DataOutputStream out, @Nonnull final Tensor tensor) throws IOException {
+    try {
+      final int[] dimensions = tensor.getDimensions();
+      out.writeInt(dimensions.length);
+      for (int dimension : dimensions) {
+        out.writeInt(dimension);
+      }
+      writeDoubles(out, tensor.getData());
+    } finally {
+      tensor.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static Tensor readTensor(@Nonnull final DataInputStream in) throws IOException {
+    final int[] dimensions = new int[in.readInt()];
+    for (int i = 0; i < dimensions.length; i++) {
+      dimensions[i] = in.readInt();
+    }
+    return new Tensor(readDoubles(in), dimensions);
+  }
+
+  private static final class Connection {
+    @Nonnull
+    private final Socket socket;
+    @Nonnull
+    private final DataInputStream in;
+    @Nonnull
+    private final DataOutputStream out;
+
+    private Connection(@Nonnull final Socket socket) throws IOException {
+      this.socket = socket;
+      this.socket.setTcpNoDelay(true);
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.debug("Error closing socket", e);
+      }
+    }
+  }
+
+  /**
+   * The worker process. Listens on a port and serves one coordinator connection at a time.
+   */
+  public static final class Worker {
+    @Nullable
+    private BasicTrainable trainable = null;
+    @Nullable
+    private double[][] weights = null;
+    @Nullable
+    private DeltaCompressor<Integer> compressor = null;
+
+    private Worker() {
+    }
+
+    /**
+     * Runs a worker listening on the port given as the first argument.
+     *
+     * @param args the input arguments
+     * @throws IOException the io exception
+     */
+    public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+        throw new IllegalArgumentException("Usage: " + Worker.class.getName() + " <port>");
+      }
+      try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        serve(serverSocket);
+      }
+    }
+
+    /**
+     * Serves coordinator connections on the given server socket until it is closed.
+     *
+     * @param serverSocket the server socket
+     */
+    public static void serve(@Nonnull final ServerSocket serverSocket) {
+      log.info("Worker listening on " + serverSocket.getLocalSocketAddress());
+      while (!serverSocket.isClosed()) {
+        try (Socket socket = serverSocket.accept()) {
+          new Worker().run(new Connection(socket));
+        } catch (IOException e) {
+          if (!serverSocket.isClosed()) log.warn("Worker connection failed", e);
+        }
+      }
+    }
+
+    private void run(@Nonnull final Connection connection) throws IOException {
+      try {
+        while (true) {
+          final int command;
+          try {
+            command = connection.in.readInt();
+          } catch (EOFException e) {
+            return;
+          }
+          if (CMD_CLOSE == command) return;
+          if (CMD_INIT != command && CMD_MEASURE != command) {
+            writeFrame(connection.out, STATUS_ERROR, ("Unknown command " + command).getBytes(StandardCharsets.UTF_8));
+            connection.out.flush();
+            return;
+          }
+          final ByteArrayOutputStream response = new ByteArrayOutputStream();
+          int status = STATUS_OK;
+          try {
+            if (CMD_INIT == command) {
+              init(connection.in);
+            } else {
+              measure(connection.in, new DataOutputStream(response));
+            }
+          } catch (RuntimeException | Error e) {
+            log.warn("Worker error", e);
+            status = STATUS_ERROR;
+            response.reset();
+            response.write(String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+          }
+          writeFrame(connection.out, status, response.toByteArray());
+          connection.out.flush();
+        }
+      } finally {
+        if (null != trainable) {
+          trainable.freeRef();
+          trainable = null;
+        }
+      }
+    }
+
+    private void init(@Nonnull final DataInputStream in) throws IOException {
+      final byte[] model = readBytes(in);
+      final int resourceCount = in.readInt();
+      final HashMap<CharSequence, byte[]> resources = new HashMap<>();
+      for (int i = 0; i < resourceCount; i++) {
+        final String key = in.readUTF();
+        resources.put(key, readBytes(in));
+      }
+      final boolean[] mask = readMask(in);
+      final int precision = in.readInt();
+      final double density = in.readDouble();
+      final int rows = in.readInt();
+      final RefList<Tensor[]> shard = new RefArrayList<>(rows);
+      for (int i = 0; i < rows; i++) {
+        final Tensor[] row = new Tensor[in.readInt()];
+        for (int j = 0; j < row.length; j++) {
+          row[j] = readTensor(in);
+        }
+        shard.add(row);
+      }
+      if (null != trainable) {
+        trainable.freeRef();
+        trainable = null;
+      }
+      weights = null;
+      compressor = null;
+      try {
+        final JsonObject json = JsonUtil.toJson(model).getAsJsonObject();
+        compressor = new DeltaCompressor<>(SerialPrecision.values()[precision], density, true);
+        final Layer layer = Layer.fromJson(json, resources);
+        final RefList<double[]> state = layer.state();
+        weights = state.toArray(new double[][]{});
+        state.freeRef();
+        trainable = new BasicTrainable(layer);
+        trainable.setMask(mask);
+        trainable.setData(shard.addRef());
+      } finally {
+        shard.freeRef();
+      }
+    }
+
+    private void measure(@Nonnull final DataInputStream in, @Nonnull final DataOutputStream out) throws IOException {
+      final int mode = in.readInt();
+      final boolean step = MEASURE_PROBE != mode;
+      final int count = in.readInt();
+      final double[][] received = new double[count][];
+      for (int i = 0; i < count; i++) {
+        received[i] = readDoubles(in);
+      }
+      if (null == trainable || null == weights || null == compressor) throw new IllegalStateException("Not initialized");
+      if (weights.length != count) {
+        throw new IllegalStateException(RefString.format("Expected %d weight arrays, received %d", weights.length, count));
+      }
+      final IdentityHashMap<double[], Integer> index = new IdentityHashMap<>();
+      for (int i = 0; i < count; i++) {
+        if (received[i].length != weights[i].length) {
+          throw new IllegalStateException(RefString.format("Weight array %d has length %d, expected %d", i, received[i].length, weights[i].length));
+        }
+        RefSystem.arraycopy(received[i], 0, weights[i], 0, weights[i].length);
+        DoubleBuffer.incrementVersion(weights[i]);
+        index.put(weights[i], i);
+      }
+      final Tensor[][] data = trainable.getData();
+      final int items = data.length;
+      RefUtil.freeRef(data);
+      final PointSample sample = trainable.measure(null);
+      if (MEASURE_NEXT_STEP == mode) compressor.commitResiduals();
+      try {
+        final List<Delta<UUID>> matched = new ArrayList<>();
+        final RefMap<UUID, Delta<UUID>> map = sample.delta.getMap();
+        map.forEach((key, delta) -> {
+          if (index.containsKey(delta.target)) matched.add(delta);
+          else delta.freeRef();
+        });
+        map.freeRef();
+        out.writeInt(items);
+        out.writeDouble(sample.getMean());
+        out.writeInt(matched.size());
+        for (Delta<UUID> delta : matched) {
+          final int position = index.get(delta.target);
+          out.writeInt(position);
+          final double[] values = delta.getDelta();
+          assert values != null;
+          writeBytes(out, step ? compressor.encode(position, values) : compressor.encodeProbe(position, values));
+          delta.freeRef();
+        }
+      } finally {
+        sample.freeRef();
+      }
+    }
+  }
+}
@@ -171,7 +171,7 @@ public class TensorListTrainable extends ReferenceCountingBase implements Traina
                     final Tensor dt = delta.get(index);
                     final Tensor t = tensors[index].addRef();
                     @Nonnull
-                    Delta<UUID> tensorBuffer = buffer.get(UUID.randomUUID(), t);
+                    Delta<UUID> tensorBuffer = buffer.get(t.getId(), t);
                     tensorBuffer.addInPlace(dt);
                     tensorBuffer.freeRef();
                   }
@@ -50,6 +50,20 @@ public class CoreSettings implements Settings {
    * The Single threaded.
    */
   public final boolean singleThreaded = get("SINGLE_THREADED", false);
+  /**
+   * The Async graph evaluation.
+   */
+  public final boolean asyncGraphEvaluation = get("ASYNC_GRAPH_EVAL", true);
+  /**
+   * Whether network activations and passback gradients are held in single precision. Weights and
+   * optimizer state remain in double precision.
+   */
+  public final boolean mixedPrecision = get("MIXED_PRECISION", false);
+  /**
+   * The loss scale applied to the seed gradient in mixed-precision mode, and removed from the
+   * accumulated weight gradients, to keep small gradients above single-precision underflow.
+   */
+  public final double lossScale = get("LOSS_SCALE", 1.0);
 
   private CoreSettings() {
     RefSystem.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
@@ -131,6 +131,7 @@ public class Delta<K> extends DoubleBuffer<K> {
         if (!Double.isFinite(target[i]))
           target[i] = 0;
       }
+      incrementVersion(target);
       assert RefArrays.stream(target).parallel().allMatch(Double::isFinite);
     }
   }
@@ -203,6 +204,24 @@ public class Delta<K> extends DoubleBuffer<K> {
     return map(x -> x * f);
   }
 
+  /**
+   * Scales the delta, and its compensation term, in place.
+   *
+   * @param f the f
+   */
+  public void scaleInPlace(final double f) {
+    assertAlive();
+    final double[] delta = getDelta();
+    for (int i = 0; i < delta.length; i++) {
+      delta[i] *= f;
+    }
+    if (null != deltaCompensation) {
+      for (int i = 0; i < deltaCompensation.length; i++) {
+        deltaCompensation[i] *= f;
+      }
+    }
+  }
+
   @Override
   public void set(@Nonnull final double[] data) {
     super.set(data);
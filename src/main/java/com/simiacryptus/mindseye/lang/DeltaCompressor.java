@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang;
+
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Lossy encoder for gradient buffers. Each buffer is sparsified to its largest-magnitude entries
+ * and quantized with a {@link SerialPrecision}. With error feedback enabled, the part of each buffer
+ * lost to compression is kept as a residual and added to the next buffer encoded for the same key,
+ * so that no gradient information is permanently discarded.
+ * <p>
+ * Residuals are carried once per optimization step. {@link #encode(Object, double[])} adds the
+ * committed residual and records the new compression error as pending; the pending errors replace
+ * the committed residuals only when {@link #commitResiduals()} is called after the step that used
+ * the gradient has been taken. Gradients measured for line-search probes are encoded with
+ * {@link #encodeProbe(Object, double[])}, which neither reads nor writes residuals.
+ * <p>
+ * Encoded buffers are self-describing and can be decoded with {@link #decode(byte[])} without
+ * knowing the settings of the encoder.
+ *
+ * @param <K> the key type
+ */
+public class DeltaCompressor<K> {
+  private static final byte DENSE = 0;
+  private static final byte SPARSE = 1;
+
+  @Nonnull
+  private final SerialPrecision precision;
+  private final double density;
+  private final boolean errorFeedback;
+  private final Map<K, double[]> residuals = new HashMap<>();
+  private final Map<K, double[]> pending = new HashMap<>();
+  private final AtomicLong rawBytes = new AtomicLong();
+  private final AtomicLong encodedBytes = new AtomicLong();
+
+  /**
+   * Instantiates a new Delta compressor.
+   *
+   * @param precision     the precision
+   * @param density       the fraction of entries retained in each buffer, in (0, 1]
+   * @param errorFeedback whether compression error is carried over to the next step
+   */
+  public DeltaCompressor(@Nonnull final SerialPrecision precision, final double density, final boolean errorFeedback) {
+    if (!(density > 0 && density <= 1)) throw new IllegalArgumentException("density = " + density);
+    this.precision = precision;
+    this.density = density;
+    this.errorFeedback = errorFeedback;
+  }
+
+  /**
+   * Gets precision.
+   *
+   * @return the precision
+   */
+  @Nonnull
+  public SerialPrecision getPrecision() {
+    return precision;
+  }
+
+  /**
+   * Gets density.
+   *
+   * @return the density
+   */
+  public double getDensity() {
+    return density;
+  }
+
+  /**
+   * Is error feedback boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isErrorFeedback() {
+    return errorFeedback;
+  }
+
+  /**
+   * Gets the total uncompressed size, in bytes, of all buffers encoded so far.
+   *
+   * @return the raw bytes
+   */
+  public long getRawBytes() {
+    return rawBytes.get();
+  }
+
+  /**
+   * Gets the total encoded size, in bytes, of all buffers encoded so far.
+   *
+   * @return the encoded bytes
+   */
+  public long getEncodedBytes() {
+    return encodedBytes.get();
+  }
+
+  /**
+   * Gets compression ratio.
+   *
+   * @return the compression ratio
+   */
+  public double getCompressionRatio() {
+    final long encoded = encodedBytes.get();
+    return 0 == encoded ? 1.0 : (double) rawBytes.get() / encoded;
+  }
+
+  /**
+   * Decode double [ ].
+   *
+   * @param data the data
+   * @return the double [ ]
+   */
+  @Nonnull
+  public static double[] decode(@Nonnull final byte[] data) {
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final byte mode = buffer.get();
+    final SerialPrecision precision = SerialPrecision.values()[buffer.get()];
+    final int length = buffer.getInt();
+    final double[] values = new double[length];
+    if (DENSE == mode) {
+      final byte[] payload = new byte[buffer.remaining()];
+      buffer.get(payload);
+      final double[] decoded = precision.fromBytes(payload);
+      System.arraycopy(decoded, 0, values, 0, Math.min(length, decoded.length));
+    } else {
+      final int count = buffer.getInt();
+      final int[] indices = new int[count];
+      for (int i = 0; i < count; i++) {
+        indices[i] = buffer.getInt();
+      }
+      final byte[] payload = new byte[buffer.remaining()];
+      buffer.get(payload);
+      final double[] decoded = precision.fromBytes(payload);
+      for (int i = 0; i < count; i++) {
+        values[indices[i]] = decoded[i];
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Decodes a set of encoded buffers into a delta set.
+   *
+   * @param <K>     the key type
+   * @param encoded the encoded buffers
+   * @param targets the function giving the target weights for each key
+   * @return the delta set
+   */
+  @Nonnull
+  public static <K> DeltaSet<K> decode(@Nonnull final Map<K, byte[]> encoded, @Nonnull final Function<K, double[]> targets) {
+    final DeltaSet<K> deltaSet = new DeltaSet<>();
+    encoded.forEach((key, bytes) -> {
+      final Delta<K> delta = deltaSet.get(key, targets.apply(key));
+      assert delta != null;
+      delta.addInPlace(decode(bytes));
+      delta.freeRef();
+    });
+    return deltaSet;
+  }
+
+  /**
+   * Encodes the gradient buffer of an optimization step. If error feedback is enabled, the committed
+   * residual for the key is added before compression and the new compression error is recorded as
+   * pending, to be committed with {@link #commitResiduals()}.
+   *
+   * @param key   the key
+   * @param delta the delta
+   * @return the encoded bytes
+   */
+  @Nonnull
+  public byte[] encode(@Nonnull final K key, @Nonnull final double[] delta) {
+    final double[] corrected = delta.clone();
+    if (errorFeedback) {
+      synchronized (residuals) {
+        final double[] residual = residuals.get(key);
+        if (null != residual && residual.length == corrected.length) {
+          for (int i = 0; i < corrected.length; i++) {
+            corrected[i] += residual[i];
+          }
+        }
+      }
+    }
+    final byte[] encoded = compress(corrected);
+    if (errorFeedback) {
+      final double[] decoded = decode(encoded);
+      for (int i = 0; i < corrected.length; i++) {
+        corrected[i] -= decoded[i];
+      }
+      synchronized (residuals) {
+        pending.put(key, corrected);
+      }
+    }
+    count(delta.length, encoded);
+    return encoded;
+  }
+
+  /**
+   * Encodes a gradient buffer measured for a line-search probe. Residuals are neither added nor
+   * updated.
+   *
+   * @param key   the key
+   * @param delta the delta
+   * @return the encoded bytes
+   */
+  @Nonnull
+  public byte[] encodeProbe(@Nonnull final K key, @Nonnull final double[] delta) {
+    final byte[] encoded = compress(delta);
+    count(delta.length, encoded);
+    return encoded;
+  }
+
+  /**
+   * Replaces the committed residuals with the compression errors recorded by {@link #encode(Object, double[])}
+   * since the last commit. Call once the step that used those gradients has been taken.
+   */
+  public void commitResiduals() {
+    synchronized (residuals) {
+      residuals.putAll(pending);
+      pending.clear();
+    }
+  }
+
+  /**
+   * Encodes every buffer of a delta set.
+   *
+   * @param deltaSet the delta set
+   * @return the encoded buffers by key
+   */
+  @Nonnull
+  public Map<K, byte[]> encode(@Nonnull final DeltaSet<K> deltaSet) {
+    final Map<K, byte[]> encoded = new LinkedHashMap<>();
+    final RefMap<K, Delta<K>> map = deltaSet.getMap();
+    deltaSet.freeRef();
+    map.forEach((key, delta) -> {
+      final double[] values = delta.getDelta();
+      delta.freeRef();
+      if (null != values) encoded.put(key, encode(key, values));
+    });
+    map.freeRef();
+    return encoded;
+  }
+
+  /**
+   * Gets the residual currently carried for a key.
+   *
+   * @param key the key
+   * @return the residual, or null if none
+   */
+  @Nullable
+  public double[] getResidual(@Nonnull final K key) {
+    synchronized (residuals) {
+      final double[] residual = residuals.get(key);
+      return null == residual ? null : residual.clone();
+    }
+  }
+
+  /**
+   * Discards all residuals, committed and pending, e.g. after the weights have been reset.
+   */
+  public void clearResiduals() {
+    synchronized (residuals) {
+      residuals.clear();
+      pending.clear();
+    }
+  }
+
+  private void count(final int length, @Nonnull final byte[] encoded) {
+    rawBytes.addAndGet((long) length * 8);
+    encodedBytes.addAndGet(encoded.length);
+  }
+
+  @Nonnull
+  private byte[] compress(@Nonnull final double[] values) {
+    final int length = values.length;
+    final int count = Math.max(1, Math.min(length, (int) Math.ceil(density * length)));
+    final int elementSize = precision.getElementSize();
+    final boolean sparse = count < length && (long) count * (4 + elementSize) < (long) length * elementSize;
+    if (!sparse) {
+      final double[] dense = values.clone();
+      if (count < length) {
+        final double threshold = threshold(values, count);
+        int kept = 0;
+        for (int i = 0; i < length; i++) {
+          if (Math.abs(dense[i]) >= threshold && kept < count) kept++;
+          else dense[i] = 0;
+        }
+      }
+      final byte[] payload = precision.toBytes(dense);
+      final ByteBuffer buffer = ByteBuffer.allocate(6 + payload.length);
+      buffer.put(DENSE).put((byte) precision.ordinal()).putInt(length).put(payload);
+      return buffer.array();
+    } else {
+      final double threshold = threshold(values, count);
+      final int[] indices = new int[count];
+      final double[] selected = new double[count];
+      int kept = 0;
+      for (int i = 0; i < length && kept < count; i++) {
+        if (Math.abs(values[i]) >= threshold) {
+          indices[kept] = i;
+          selected[kept] = values[i];
+          kept++;
+        }
+      }
+      final byte[] payload = precision.toBytes(Arrays.copyOf(selected, kept));
+      final ByteBuffer buffer = ByteBuffer.allocate(10 + 4 * kept + payload.length);
+      buffer.put(SPARSE).put((byte) precision.ordinal()).putInt(length).putInt(kept);
+      for (int i = 0; i < kept; i++) {
+        buffer.putInt(indices[i]);
+      }
+      buffer.put(payload);
+      return buffer.array();
+    }
+  }
+
+  /**
+   * Finds the magnitude of the count-th largest entry, in expected linear time by quickselect.
+   *
+   * @param values the values
+   * @param count  the count
+   * @return the threshold
+   */
+  static double threshold(@Nonnull final double[] values, final int count) {
+    final double[] magnitudes = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      magnitudes[i] = Math.abs(values[i]);
+    }
+    final int k = values.length - count;
+    int left = 0;
+    int right = magnitudes.length - 1;
+    while (left < right) {
+      final int mid = (left + right) >>> 1;
+      if (magnitudes[mid] < magnitudes[left]) swap(magnitudes, mid, left);
+      if (magnitudes[right] < magnitudes[left]) swap(magnitudes, right, left);
+      if (magnitudes[right] < magnitudes[mid]) swap(magnitudes, right, mid);
+      final double pivot = magnitudes[mid];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (magnitudes[i] < pivot) i++;
+        while (magnitudes[j] > pivot) j--;
+        if (i <= j) {
+          swap(magnitudes, i, j);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        break;
+      }
+    }
+    return magnitudes[k];
+  }
+
+  private static void swap(@Nonnull final double[] values, final int i, final int j) {
+    final double tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+}
@@ -216,6 +216,18 @@ public class DeltaSet<K> extends DoubleBufferSet<K, Delta<K>> {
     });
   }
 
+  /**
+   * Scales every delta in place.
+   *
+   * @param f the f
+   */
+  public void scaleInPlace(final double f) {
+    map.forEach((key, delta) -> {
+      delta.scaleInPlace(f);
+      delta.freeRef();
+    });
+  }
+
   /**
    * Subtract delta set.
    *
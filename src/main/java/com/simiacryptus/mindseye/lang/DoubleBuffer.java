@@ -27,6 +27,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.DoubleUnaryOperator;
 
 /**
@@ -37,6 +42,10 @@ import java.util.function.DoubleUnaryOperator;
 public class DoubleBuffer<K> extends ReferenceCountingBase {
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(DoubleBuffer.class);
+  private static final Map<double[], Version> versions = Collections.synchronizedMap(new WeakHashMap<>());
+  private static final AtomicLong arrayIds = new AtomicLong();
+  private static final int TRACKED_BITS = 1 << 16;
+  private static final AtomicLongArray tracked = new AtomicLongArray(TRACKED_BITS / 64);
   /**
    * The Key.
    */
@@ -52,6 +61,61 @@ public class DoubleBuffer<K> extends ReferenceCountingBase {
   @Nullable
   protected volatile double[] delta;
 
+  /**
+   * Gets the modification version of an array. The first call for an array starts tracking it;
+   * from then on every mutation made through {@link Delta}, {@link State}, {@link ParameterVector}
+   * or the bulk mutators of {@link Tensor} increments the version. Arrays are compared by identity
+   * and tracked weakly. Code which writes an array by indexing it directly must call
+   * {@link #incrementVersion(double[])} afterwards; otherwise {@link State#isDifferent()} may report
+   * a stale result.
+   *
+   * @param data the data
+   * @return the version
+   */
+  public static long getVersion(@Nonnull final double[] data) {
+    return track(data).get();
+  }
+
+  /**
+   * Gets a unique id for an array, assigned in increasing order when the array is first tracked.
+   * Unlike an identity hash code, two live arrays never share an id.
+   *
+   * @param data the data
+   * @return the array id
+   */
+  public static long getArrayId(@Nonnull final double[] data) {
+    return track(data).id;
+  }
+
+  /**
+   * Increments the modification version of an array, if it is tracked. Untracked arrays, such as
+   * activations and gradients, are usually rejected by a lock-free filter without touching the
+   * version table.
+   *
+   * @param data the data
+   */
+  public static void incrementVersion(@Nonnull final double[] data) {
+    final int bit = trackingBit(data);
+    if (0 == (tracked.get(bit >>> 6) & (1L << bit))) return;
+    final Version version = versions.get(data);
+    if (null != version) version.incrementAndGet();
+  }
+
+  @Nonnull
+  private static Version track(@Nonnull final double[] data) {
+    final int bit = trackingBit(data);
+    final long mask = 1L << bit;
+    if (0 == (tracked.get(bit >>> 6) & mask)) {
+      tracked.getAndAccumulate(bit >>> 6, mask, (a, b) -> a | b);
+    }
+    return versions.computeIfAbsent(data, k -> new Version(arrayIds.incrementAndGet()));
+  }
+
+  private static int trackingBit(@Nonnull final double[] data) {
+    final int hash = System.identityHashCode(data) * 0x9E3779B9;
+    return (hash >>> 16) & (TRACKED_BITS - 1);
+  }
+
   /**
    * Instantiates a new Double buffer.
    *
@@ -257,4 +321,13 @@ public class DoubleBuffer<K> extends ReferenceCountingBase {
   DoubleBuffer<K> addRef() {
     return (DoubleBuffer<K>) super.addRef();
   }
+
+  @SuppressWarnings("serial")
+  private static final class Version extends AtomicLong {
+    private final long id;
+
+    private Version(final long id) {
+      this.id = id;
+    }
+  }
 }
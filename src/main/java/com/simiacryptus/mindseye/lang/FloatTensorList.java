@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.lang;
+
+import com.simiacryptus.ref.lang.RefAware;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * A tensor list stored in single precision, in one contiguous array. Items are widened to double
+ * precision tensors as they are read, so the list can be used anywhere a tensor list is expected
+ * while holding half the memory of a {@link TensorArray}. Each read widens into a new tensor, but
+ * repeated reads of one item carry the same id. Used for activations and passback
+ * gradients in mixed-precision mode; see {@link CoreSettings#mixedPrecision}.
+ */
+public class FloatTensorList extends ReferenceCountingBase implements TensorList {
+  @Nonnull
+  private final float[] data;
+  @Nonnull
+  private final int[] dimensions;
+  private final int length;
+  private final int elements;
+  @Nullable
+  private volatile UUID baseId;
+
+  /**
+   * Instantiates a new Float tensor list, narrowing the given list to single precision.
+   *
+   * @param list the list
+   */
+  public FloatTensorList(@Nonnull final TensorList list) {
+    this.dimensions = list.getDimensions();
+    this.length = list.length();
+    this.elements = Tensor.length(dimensions);
+    this.data = new float[length * elements];
+    for (int i = 0; i < length; i++) {
+      final Tensor tensor = list.get(i);
+      final double[] values = tensor.getData();
+      final int offset = i * elements;
+      for (int j = 0; j < elements; j++) {
+        data[offset + j] = (float) values[j];
+      }
+      tensor.freeRef();
+    }
+    list.freeRef();
+  }
+
+  private FloatTensorList(@Nonnull final float[] data, final int length, @Nonnull final int[] dimensions) {
+    this.data = data;
+    this.dimensions = dimensions;
+    this.length = length;
+    this.elements = Tensor.length(dimensions);
+  }
+
+  @Nonnull
+  @Override
+  public int[] getDimensions() {
+    return RefArrays.copyOf(dimensions, dimensions.length);
+  }
+
+  @Override
+  public int getElements() {
+    return data.length;
+  }
+
+  /**
+   * Narrows a tensor list to single precision, unless it already is.
+   *
+   * @param list the list
+   * @return the float tensor list
+   */
+  @Nonnull
+  public static FloatTensorList wrap(@Nonnull final TensorList list) {
+    if (list instanceof FloatTensorList) return (FloatTensorList) list;
+    return new FloatTensorList(list);
+  }
+
+  /**
+   * Narrows a tensor list to single precision if mixed precision is enabled.
+   *
+   * @param list the list
+   * @return the tensor list
+   */
+  @Nonnull
+  public static TensorList mixed(@Nonnull final TensorList list) {
+    if (!CoreSettings.INSTANCE().mixedPrecision) return list;
+    return wrap(list);
+  }
+
+  @Override
+  public TensorList add(@Nonnull final TensorList right) {
+    if (!(right instanceof FloatTensorList)) return TensorList.super.add(right);
+    final FloatTensorList other = (FloatTensorList) right;
+    if (0 == other.length) {
+      other.freeRef();
+      return this.addRef();
+    }
+    if (other.length != length || other.data.length != data.length) {
+      other.freeRef();
+      throw new IllegalArgumentException(RefString.format("%s x %s != %s x %s",
+          length, RefArrays.toString(dimensions), other.length, RefArrays.toString(other.dimensions)));
+    }
+    final float[] sum = new float[data.length];
+    for (int i = 0; i < sum.length; i++) {
+      sum[i] = data[i] + other.data[i];
+    }
+    other.freeRef();
+    return new FloatTensorList(sum, length, dimensions);
+  }
+
+  @Override
+  @Nonnull
+  @RefAware
+  public Tensor get(final int i) {
+    assertAlive();
+    final Tensor tensor = new Tensor(dimensions);
+    final double[] values = tensor.getData();
+    final int offset = i * elements;
+    for (int j = 0; j < elements; j++) {
+      values[j] = data[offset + j];
+    }
+    tensor.setId(getId(i));
+    return tensor;
+  }
+
+  /**
+   * Gets the id of the given item. Each read widens the item into a new tensor, but repeated reads
+   * of the same item carry the same id.
+   *
+   * @param i the index
+   * @return the id
+   */
+  @Nonnull
+  public UUID getId(final int i) {
+    UUID base = baseId;
+    if (null == base) {
+      synchronized (this) {
+        base = baseId;
+        if (null == base) {
+          base = UUID.randomUUID();
+          baseId = base;
+        }
+      }
+    }
+    return new UUID(base.getMostSignificantBits(), base.getLeastSignificantBits() + i);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, length).mapToObj(i -> get(i));
+  }
+
+  @Nonnull
+  @Override
+  public String toString() {
+    return RefString.format("FloatTensorList{length=%s, dimensions=%s}", length, RefArrays.toString(dimensions));
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  FloatTensorList addRef() {
+    return (FloatTensorList) super.addRef();
+  }
+}
@@ -23,8 +23,9 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
-import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.mindseye.util.StreamingEvaluator;
 import com.simiacryptus.ref.lang.ReferenceCounting;
+import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefCollection;
 import com.simiacryptus.ref.wrappers.RefCollectors;
 import com.simiacryptus.ref.wrappers.RefList;
@@ -184,19 +185,40 @@ public interface Layer extends ReferenceCounting, Serializable, ZipSerializable
    */
   @Nonnull
   default int[] evalDims(int[] inputDims) {
-    Tensor input = new Tensor(inputDims);
-    Result temp_34_0013 = eval(input.addRef());
-    assert temp_34_0013 != null;
-    TensorList temp_34_0014 = temp_34_0013.getData();
-    Tensor tensor = temp_34_0014.get(0);
-    temp_34_0014.freeRef();
-    temp_34_0013.freeRef();
-    input.freeRef();
+    return evalDims(new int[][]{inputDims});
+  }
+
+  /**
+   * Eval dims int [ ].
+   * Uses {@link #getOutputDimensions(int[]...)} where the layer supports it, and otherwise
+   * evaluates the layer once on zero-valued inputs.
+   *
+   * @param inputDims the input dims
+   * @return the int [ ]
+   */
+  @Nonnull
+  default int[] evalDims(@Nonnull int[][] inputDims) {
+    int[] outputDims = getOutputDimensions(inputDims);
+    if (null != outputDims) return outputDims;
+    TensorList output = infer(RefArrays.stream(inputDims).map(dims -> new TensorArray(new Tensor(dims))).toArray(TensorList[]::new));
+    Tensor tensor = output.get(0);
+    output.freeRef();
     int[] temp_34_0001 = tensor.getDimensions();
     tensor.freeRef();
     return temp_34_0001;
   }
 
+  /**
+   * Computes the output dimensions for the given input dimensions without evaluating the layer.
+   *
+   * @param inputDims the input dims
+   * @return the output dimensions, or null if the layer does not support static shape inference
+   */
+  @Nullable
+  default int[] getOutputDimensions(@Nonnull int[]... inputDims) {
+    return null;
+  }
+
   /**
    * Map ref list.
    *
@@ -206,14 +228,9 @@ public interface Layer extends ReferenceCounting, Serializable, ZipSerializable
   @Nonnull
   default RefList<Tensor> map(@Nonnull RefCollection<? extends Tensor> values) {
     RefList<Tensor> temp_34_0006 = values.stream().map(t -> {
-      Result temp_34_0015 = eval(RefUtil.addRef(t));
-      assert temp_34_0015 != null;
-      TensorList temp_34_0016 = temp_34_0015.getData();
+      TensorList temp_34_0016 = infer(new TensorArray(t));
       Tensor temp_34_0002 = temp_34_0016.get(0);
       temp_34_0016.freeRef();
-      temp_34_0015.freeRef();
-      if (null != t)
-        t.freeRef();
       return temp_34_0002;
     }).collect(RefCollectors.toList());
     values.freeRef();
@@ -229,18 +246,28 @@ public interface Layer extends ReferenceCounting, Serializable, ZipSerializable
   @Nonnull
   default RefStream<Tensor> map(@Nonnull RefStream<Tensor> values) {
     return values.map(t -> {
-      Result temp_34_0017 = eval(RefUtil.addRef(t));
-      assert temp_34_0017 != null;
-      TensorList temp_34_0018 = temp_34_0017.getData();
+      TensorList temp_34_0018 = infer(new TensorArray(t));
       Tensor temp_34_0003 = temp_34_0018.get(0);
       temp_34_0018.freeRef();
-      temp_34_0017.freeRef();
-      if (null != t)
-        t.freeRef();
       return temp_34_0003;
     });
   }
 
+  /**
+   * Maps the stream through this layer in batches, overlapping input preparation,
+   * evaluation and output consumption. Output order matches input order.
+   *
+   * @param values    the values
+   * @param batchSize the batch size
+   * @return the ref stream
+   * @see StreamingEvaluator
+   */
+  @Nonnull
+  default RefStream<Tensor> map(@Nonnull RefStream<Tensor> values, int batchSize) {
+    return StreamingEvaluator.map(this.addRef(), values, batchSize,
+        Math.max(2, Runtime.getRuntime().availableProcessors()));
+  }
+
   /**
    * And then pipeline network.
    *
@@ -331,6 +358,25 @@ public interface Layer extends ReferenceCounting, Serializable, ZipSerializable
     return eval(ConstantResult.singleResultArray(array));
   }
 
+  /**
+   * Evaluates the layer for inference only. No gradient accumulators are retained,
+   * and only the output data is returned.
+   * Implementations may override this to avoid building backward structures entirely.
+   *
+   * @param inputs the inputs
+   * @return the tensor list
+   */
+  @Nonnull
+  default TensorList infer(@Nonnull final TensorList... inputs) {
+    final Result[] results = new Result[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      results[i] = new ConstantResult(inputs[i]);
+    }
+    Result result = eval(results);
+    assert result != null;
+    return Result.getData(result);
+  }
+
   /**
    * Freeze.
    */
@@ -354,14 +400,9 @@ public interface Layer extends ReferenceCounting, Serializable, ZipSerializable
   @Nonnull
   default UnaryOperator<Tensor> asTensorFunction() {
     return input -> {
-      Result result = eval(input == null ? null : input.addRef());
-      assert result != null;
-      TensorList tensorList = result.getData();
-      result.freeRef();
+      TensorList tensorList = infer(new TensorArray(input));
       Tensor tensor = tensorList.get(0);
       tensorList.freeRef();
-      if (null != input)
-        input.freeRef();
       return tensor;
     };
   }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.lang;
+
+import com.simiacryptus.ref.wrappers.RefSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A fixed layout of a set of parameter buffers as one flat vector. Each buffer, identified by its
+ * key and weight array, occupies a contiguous range of the vector, in key order. Weights, gradients
+ * and directions can be gathered into flat arrays of {@link #getDimension()} elements, operated on
+ * with the single-array BLAS-1 routines here, and scattered back to the layers' weight arrays or
+ * into a {@link DeltaSet}. Layers keep their own buffers, so the {@link Layer#state()} contract is
+ * unchanged.
+ */
+public final class ParameterVector {
+  @Nonnull
+  private final UUID[] keys;
+  @Nonnull
+  private final double[][] targets;
+  @Nonnull
+  private final int[] offsets;
+  private final int dimension;
+
+  private ParameterVector(@Nonnull final UUID[] keys, @Nonnull final double[][] targets) {
+    this.keys = keys;
+    this.targets = targets;
+    this.offsets = new int[keys.length + 1];
+    for (int i = 0; i < keys.length; i++) {
+      offsets[i + 1] = offsets[i] + targets[i].length;
+    }
+    this.dimension = offsets[keys.length];
+  }
+
+  /**
+   * Gets dimension.
+   *
+   * @return the dimension
+   */
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * Gets the number of parameter buffers.
+   *
+   * @return the buffer count
+   */
+  public int getBufferCount() {
+    return keys.length;
+  }
+
+  /**
+   * Gets the key of a buffer.
+   *
+   * @param index the buffer index
+   * @return the key
+   */
+  @Nonnull
+  public UUID getKey(final int index) {
+    return keys[index];
+  }
+
+  /**
+   * Gets the offset of a buffer within the vector.
+   *
+   * @param index the buffer index
+   * @return the offset
+   */
+  public int getOffset(final int index) {
+    return offsets[index];
+  }
+
+  /**
+   * Lays out the buffers of a delta set.
+   *
+   * @param delta the delta
+   * @return the parameter vector
+   */
+  @Nonnull
+  public static ParameterVector of(@Nonnull final DeltaSet<UUID> delta) {
+    final RefSet<UUID> keySet = delta.keySet();
+    final List<UUID> keyList = new ArrayList<>(keySet);
+    keySet.freeRef();
+    keyList.sort(null);
+    final UUID[] keys = keyList.toArray(new UUID[]{});
+    final double[][] targets = new double[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      final Delta<UUID> buffer = delta.get(keys[i]);
+      assert buffer != null;
+      targets[i] = buffer.target;
+      buffer.freeRef();
+    }
+    delta.freeRef();
+    return new ParameterVector(keys, targets);
+  }
+
+  /**
+   * Lays out the buffers of a delta set, reusing an existing layout if it still matches.
+   *
+   * @param previous the previous layout, or null
+   * @param delta    the delta
+   * @return the parameter vector
+   */
+  @Nonnull
+  public static ParameterVector of(@Nullable final ParameterVector previous, @Nonnull final DeltaSet<UUID> delta) {
+    if (null != previous && previous.matches(delta.addRef())) {
+      delta.freeRef();
+      return previous;
+    }
+    return of(delta);
+  }
+
+  /**
+   * Tests whether a delta set has exactly the buffers of this layout.
+   *
+   * @param delta the delta
+   * @return the boolean
+   */
+  public boolean matches(@Nonnull final DeltaSet<UUID> delta) {
+    try {
+      if (delta.size() != keys.length) return false;
+      for (int i = 0; i < keys.length; i++) {
+        final Delta<UUID> buffer = delta.get(keys[i]);
+        if (null == buffer) return false;
+        final boolean same = buffer.target == targets[i];
+        buffer.freeRef();
+        if (!same) return false;
+      }
+      return true;
+    } finally {
+      delta.freeRef();
+    }
+  }
+
+  /**
+   * Allocates a zeroed vector of this layout.
+   *
+   * @return the double [ ]
+   */
+  @Nonnull
+  public double[] allocate() {
+    return new double[dimension];
+  }
+
+  /**
+   * Reads the current weights of every buffer.
+   *
+   * @param destination the destination
+   */
+  public void readWeights(@Nonnull final double[] destination) {
+    for (int i = 0; i < keys.length; i++) {
+      System.arraycopy(targets[i], 0, destination, offsets[i], targets[i].length);
+    }
+  }
+
+  /**
+   * Reads the weights recorded in a state set. Buffers missing from the state are read as zero.
+   *
+   * @param state       the state
+   * @param destination the destination
+   */
+  public void readWeights(@Nonnull final StateSet<UUID> state, @Nonnull final double[] destination) {
+    for (int i = 0; i < keys.length; i++) {
+      final State<UUID> buffer = state.get(keys[i]);
+      final double[] values = null == buffer ? null : buffer.getDelta();
+      if (null == values) {
+        Arrays.fill(destination, offsets[i], offsets[i + 1], 0.0);
+      } else {
+        System.arraycopy(values, 0, destination, offsets[i], targets[i].length);
+      }
+      if (null != buffer) buffer.freeRef();
+    }
+    state.freeRef();
+  }
+
+  /**
+   * Reads the values of a delta set. Buffers missing from the delta set, and non-finite values, are
+   * read as zero.
+   *
+   * @param delta       the delta
+   * @param destination the destination
+   */
+  public void readDelta(@Nonnull final DeltaSet<UUID> delta, @Nonnull final double[] destination) {
+    for (int i = 0; i < keys.length; i++) {
+      final Delta<UUID> buffer = delta.get(keys[i]);
+      final double[] values = null == buffer ? null : buffer.getDelta();
+      final int offset = offsets[i];
+      if (null == values) {
+        Arrays.fill(destination, offset, offsets[i + 1], 0.0);
+      } else {
+        for (int j = 0; j < targets[i].length; j++) {
+          final double v = values[j];
+          destination[offset + j] = Double.isFinite(v) ? v : 0;
+        }
+      }
+      if (null != buffer) buffer.freeRef();
+    }
+    delta.freeRef();
+  }
+
+  /**
+   * Writes a vector into the weights of every buffer.
+   *
+   * @param source the source
+   */
+  public void writeWeights(@Nonnull final double[] source) {
+    for (int i = 0; i < keys.length; i++) {
+      final double[] target = targets[i];
+      synchronized (target) {
+        System.arraycopy(source, offsets[i], target, 0, target.length);
+        DoubleBuffer.incrementVersion(target);
+      }
+    }
+  }
+
+  /**
+   * Builds a delta set holding a vector.
+   *
+   * @param source the source
+   * @return the delta set
+   */
+  @Nonnull
+  public DeltaSet<UUID> toDeltaSet(@Nonnull final double[] source) {
+    final DeltaSet<UUID> result = new DeltaSet<>();
+    for (int i = 0; i < keys.length; i++) {
+      final Delta<UUID> buffer = result.get(keys[i], targets[i]);
+      assert buffer != null;
+      final double[] values = buffer.getDelta();
+      assert values != null;
+      System.arraycopy(source, offsets[i], values, 0, targets[i].length);
+      buffer.freeRef();
+    }
+    return result;
+  }
+
+  /**
+   * Dot product.
+   *
+   * @param x the x
+   * @param y the y
+   * @return the double
+   */
+  public static double dot(@Nonnull final double[] x, @Nonnull final double[] y) {
+    double sum = 0;
+    for (int i = 0; i < x.length; i++) {
+      sum += x[i] * y[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Computes <code>y += a * x</code>.
+   *
+   * @param a the a
+   * @param x the x
+   * @param y the y
+   */
+  public static void axpy(final double a, @Nonnull final double[] x, @Nonnull final double[] y) {
+    for (int i = 0; i < x.length; i++) {
+      y[i] += a * x[i];
+    }
+  }
+
+  /**
+   * Computes <code>x *= a</code>.
+   *
+   * @param a the a
+   * @param x the x
+   */
+  public static void scale(final double a, @Nonnull final double[] x) {
+    for (int i = 0; i < x.length; i++) {
+      x[i] *= a;
+    }
+  }
+
+  /**
+   * Computes <code>z = x - y</code>.
+   *
+   * @param x the x
+   * @param y the y
+   * @param z the z
+   */
+  public static void subtract(@Nonnull final double[] x, @Nonnull final double[] y, @Nonnull final double[] z) {
+    for (int i = 0; i < x.length; i++) {
+      z[i] = x[i] - y[i];
+    }
+  }
+}
@@ -217,6 +217,11 @@ public class Result extends ReferenceCountingBase {
    * @param value  the value
    */
   public final void accumulate(@Nullable final DeltaSet<UUID> buffer, final double value) {
+    final CoreSettings settings = CoreSettings.INSTANCE();
+    if (settings.mixedPrecision && 1 != settings.lossScale && null != buffer) {
+      accumulateScaled(buffer, value, settings.lossScale);
+      return;
+    }
     accumulate(buffer, new TensorArray(IntStream.range(0, dataLength).mapToObj(x -> {
       Tensor tensor = new Tensor(dims);
       tensor.setAll(value);
@@ -224,6 +229,26 @@ public class Result extends ReferenceCountingBase {
     }).toArray(Tensor[]::new)));
   }
 
+  /**
+   * Accumulates with the seed gradient multiplied by a loss scale into a separate delta set, divides
+   * the scale back out of those weight gradients in place, and adds them to the buffer.
+   *
+   * @param buffer    the buffer
+   * @param value     the value
+   * @param lossScale the loss scale
+   */
+  public final void accumulateScaled(@Nonnull final DeltaSet<UUID> buffer, final double value, final double lossScale) {
+    @Nonnull final DeltaSet<UUID> scaled = new DeltaSet<>();
+    accumulate(scaled.addRef(), new TensorArray(IntStream.range(0, dataLength).mapToObj(x -> {
+      Tensor tensor = new Tensor(dims);
+      tensor.setAll(value * lossScale);
+      return tensor;
+    }).toArray(Tensor[]::new)));
+    scaled.scaleInPlace(1.0 / lossScale);
+    buffer.addInPlace(scaled);
+    buffer.freeRef();
+  }
+
   /**
    * Accumulate.
    *
@@ -34,6 +34,8 @@ import java.util.function.DoubleUnaryOperator;
 @SuppressWarnings({"rawtypes", "unchecked"})
 public class State<K> extends DoubleBuffer<K> {
 
+  private volatile long version = -1;
+
   /**
    * Instantiates a new State.
    *
@@ -65,18 +67,39 @@ public class State<K> extends DoubleBuffer<K> {
     return areEqual(getDelta(), target);
   }
 
+  /**
+   * Checks whether the target differs from the saved state. If the target's version is unchanged
+   * since the state was saved or last verified, this is answered without comparing elements;
+   * otherwise the elements are compared, and a match refreshes the saved version.
+   *
+   * @return the boolean
+   */
+  public boolean isDifferent() {
+    final long current = getVersion(target);
+    if (version == current) return false;
+    if (areEqual()) {
+      version = current;
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Backup.
    */
   public synchronized void backup() {
+    final long current = getVersion(target);
     RefSystem.arraycopy(target, 0, getDelta(), 0, target.length);
+    version = current;
   }
 
   @Nonnull
   @Override
   public State<K> copy() {
     assertAlive();
-    return new State(key, target, RecycleBin.DOUBLES.copyOf(delta, length()));
+    State<K> copy = new State(key, target, RecycleBin.DOUBLES.copyOf(delta, length()));
+    copy.version = version;
+    return copy;
   }
 
   @Nonnull
@@ -90,6 +113,8 @@ public class State<K> extends DoubleBuffer<K> {
    */
   public synchronized void restore() {
     RefSystem.arraycopy(getDelta(), 0, target, 0, target.length);
+    incrementVersion(target);
+    version = getVersion(target);
   }
 
   public @SuppressWarnings("unused")
@@ -99,13 +99,13 @@ public class StateSet<K> extends DoubleBufferSet<K, State<K>> {
   }
 
   /**
-   * Is different boolean.
+   * Is different boolean. Buffers whose version is unchanged since they were saved are not compared.
    *
    * @return the boolean
    */
   public boolean isDifferent() {
     return stream().parallel().anyMatch(x -> {
-      boolean temp_41_0005 = !x.areEqual();
+      boolean temp_41_0005 = x.isDifferent();
       x.freeRef();
       return temp_41_0005;
     });
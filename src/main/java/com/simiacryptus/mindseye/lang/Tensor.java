@@ -291,6 +291,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
     for (int i = 0; i < data.length; i++) {
       data[i] = v;
     }
+    DoubleBuffer.incrementVersion(data);
   }
 
   /**
@@ -716,6 +717,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
    */
   public void fill(int fromIndex, int toIndex, double val) {
     Arrays.fill(getData(), fromIndex, toIndex, val);
+    DoubleBuffer.incrementVersion(getData());
   }
 
   /**
@@ -811,6 +813,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
           data[i] += toAdd[i];
         }
       });
+      DoubleBuffer.incrementVersion(data);
     } finally {
       if (tensor != null) tensor.freeRef();
     }
@@ -833,7 +836,9 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
    * @param value the value
    */
   public final void add(final int index, final double value) {
-    getData()[index] += value;
+    final double[] data = getData();
+    data[index] += value;
+    DoubleBuffer.incrementVersion(data);
   }
 
   /**
@@ -1448,6 +1453,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
     for (int i = 0; i < data.length; i++) {
       data[i] *= d;
     }
+    DoubleBuffer.incrementVersion(data);
   }
 
   /**
@@ -1471,6 +1477,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
     for (int i = 0; i < getData().length; i++) {
       getData()[i] = data[i];
     }
+    DoubleBuffer.incrementVersion(getData());
   }
 
   /**
@@ -1480,6 +1487,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
    */
   public void set(@Nonnull DoubleSupplier f) {
     RefArrays.setAll(getData(), i -> f.getAsDouble());
+    DoubleBuffer.incrementVersion(getData());
   }
 
   /**
@@ -1531,7 +1539,9 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
     // assert Double.isFinite(value);
     assert index >= 0 : index;
     assert index < length() : RefString.format("%d>%d (%s)", index, length(), RefArrays.toString(dimensions));
-    getData()[index] = value;
+    final double[] data = getData();
+    data[index] = value;
+    DoubleBuffer.incrementVersion(data);
   }
 
   /**
@@ -1552,6 +1562,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
   public void set(@Nonnull IntToDoubleFunction f) {
     try {
       RefArrays.parallelSetAll(getData(), f);
+      DoubleBuffer.incrementVersion(getData());
     } finally {
       RefUtil.freeRef(f);
     }
@@ -1571,6 +1582,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
       throw new IllegalArgumentException(dst.length + " != " + src.length);
     }
     RefSystem.arraycopy(src, 0, dst, 0, src.length);
+    DoubleBuffer.incrementVersion(dst);
     right.freeRef();
   }
 
@@ -1749,6 +1761,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
    */
   public void setBytes(byte[] bytes, @Nonnull DataSerializer precision) {
     precision.copy(bytes, getData());
+    DoubleBuffer.incrementVersion(getData());
   }
 
   /**
@@ -1910,6 +1923,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
     for (int i = 0; i < data.length; i++) {
       data[i] = (FastRandom.INSTANCE.random() - 0.5) * 2 * amplitude;
     }
+    DoubleBuffer.incrementVersion(data);
   }
 
   /**
@@ -1966,6 +1980,7 @@ public final class Tensor extends ReferenceCountingBase implements Serializable,
    */
   public void fill(double v) {
     Arrays.fill(getData(), v);
+    DoubleBuffer.incrementVersion(getData());
   }
 
   @Nonnull
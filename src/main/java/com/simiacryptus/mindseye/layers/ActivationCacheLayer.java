@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Caches the outputs of a frozen network prefix, keyed by a 128-bit hash of the content of the input
+ * tensors. Keying by content rather than tensor id lets a sample hit the cache when it is
+ * materialized again as a new tensor, as {@link FloatTensorList#get(int)} and decoding sample caches do.
+ * While the wrapped layer and all of its children are frozen and deterministic, and the inputs carry
+ * no gradient, outputs for previously seen samples are returned from the cache and only unseen
+ * samples are evaluated. A prefix containing a {@link StochasticComponent} is never cached.
+ * Cached activations are held within a byte budget in least-recently-used order; evicted entries are
+ * optionally spilled to disk, within a second byte budget, and reloaded on demand.
+ * The cache is cleared whenever the prefix is found to be unfrozen.
+ */
+@SuppressWarnings("serial")
+public class ActivationCacheLayer extends WrapperLayer {
+  private static final Logger log = LoggerFactory.getLogger(ActivationCacheLayer.class);
+
+  private final LinkedHashMap<List<UUID>, Tensor> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<List<UUID>, File> spilled = new LinkedHashMap<>();
+  private long maxBytes;
+  private long bytes = 0;
+  private long maxSpillBytes = 0;
+  private long spillBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  @Nullable
+  private File spillDirectory = null;
+  @Nonnull
+  private SerialPrecision spillPrecision = SerialPrecision.Double;
+
+  /**
+   * Instantiates a new Activation cache layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   */
+  protected ActivationCacheLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json, rs);
+    maxBytes = json.get("maxBytes").getAsLong();
+  }
+
+  /**
+   * Instantiates a new Activation cache layer.
+   *
+   * @param inner    the inner
+   * @param maxBytes the max bytes
+   */
+  public ActivationCacheLayer(@Nullable final Layer inner, final long maxBytes) {
+    super(inner);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets max bytes.
+   *
+   * @return the max bytes
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets max bytes.
+   *
+   * @param maxBytes the max bytes
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /**
+   * Gets spill directory.
+   *
+   * @return the spill directory
+   */
+  @Nullable
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Gets max spill bytes.
+   *
+   * @return the max spill bytes
+   */
+  public long getMaxSpillBytes() {
+    return maxSpillBytes;
+  }
+
+  /**
+   * Gets the number of bytes currently spilled to disk.
+   *
+   * @return the spill bytes
+   */
+  public long getSpillBytes() {
+    return spillBytes;
+  }
+
+  /**
+   * Sets the directory evicted activations are written to, and the number of bytes that may be kept
+   * there. When the spill budget is exceeded the oldest spilled activations are deleted.
+   * If the directory is null, evicted activations are discarded.
+   *
+   * @param spillDirectory the spill directory
+   * @param maxSpillBytes  the max spill bytes
+   */
+  public synchronized void setSpillDirectory(@Nullable File spillDirectory, long maxSpillBytes) {
+    if (maxSpillBytes < 0) throw new IllegalArgumentException("maxSpillBytes = " + maxSpillBytes);
+    this.spillDirectory = spillDirectory;
+    this.maxSpillBytes = null == spillDirectory ? 0 : maxSpillBytes;
+    trimSpill();
+  }
+
+  /**
+   * Gets spill precision.
+   *
+   * @return the spill precision
+   */
+  @Nonnull
+  public SerialPrecision getSpillPrecision() {
+    return spillPrecision;
+  }
+
+  /**
+   * Sets spill precision.
+   *
+   * @param spillPrecision the spill precision
+   */
+  public void setSpillPrecision(@Nonnull SerialPrecision spillPrecision) {
+    this.spillPrecision = spillPrecision;
+  }
+
+  /**
+   * Gets hits.
+   *
+   * @return the hits
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets misses.
+   *
+   * @return the misses
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * From json activation cache layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the activation cache layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static ActivationCacheLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new ActivationCacheLayer(json, rs);
+  }
+
+  /**
+   * Clears all cached activations.
+   */
+  public synchronized void clear() {
+    memory.values().forEach(tensor -> tensor.freeRef());
+    memory.clear();
+    spilled.values().forEach(file -> file.delete());
+    spilled.clear();
+    bytes = 0;
+    spillBytes = 0;
+  }
+
+  @Nullable
+  @Override
+  public Result eval(@Nullable final Result... array) {
+    assert inner != null;
+    assert array != null;
+    if (!isPrefixFrozen()) {
+      clear();
+      return inner.eval(array);
+    }
+    if (0 == array.length || Result.anyAlive(RefUtil.addRef(array))) {
+      return inner.eval(array);
+    }
+    final TensorList[] data = RefArrays.stream(array).map(result -> {
+      TensorList tensorList = result.getData();
+      result.freeRef();
+      return tensorList;
+    }).toArray(TensorList[]::new);
+    try {
+      final int length = data[0].length();
+      final Tensor[] outputs = new Tensor[length];
+      final List<List<UUID>> keys = new ArrayList<>(length);
+      final List<Integer> missing = new ArrayList<>();
+      synchronized (this) {
+        for (int i = 0; i < length; i++) {
+          final List<UUID> key = getKey(data, i);
+          keys.add(key);
+          outputs[i] = lookup(key);
+          if (null == outputs[i]) missing.add(i);
+        }
+        hits += length - missing.size();
+        misses += missing.size();
+      }
+      if (!missing.isEmpty()) {
+        final TensorList[] missingInputs = RefArrays.stream(RefUtil.addRef(data)).map(column -> {
+          final Tensor[] tensors = missing.stream().map(i -> column.get(i)).toArray(Tensor[]::new);
+          column.freeRef();
+          return new TensorArray(tensors);
+        }).toArray(TensorList[]::new);
+        final TensorList computed = inner.infer(missingInputs);
+        try {
+          if (computed.length() != missing.size()) {
+            RefUtil.freeRef(outputs);
+            return new ConstantResult(inner.infer(RefUtil.addRef(data)));
+          }
+          for (int j = 0; j < missing.size(); j++) {
+            final Tensor tensor = computed.get(j);
+            final int index = missing.get(j);
+            outputs[index] = tensor.addRef();
+            store(keys.get(index), tensor);
+          }
+        } finally {
+          computed.freeRef();
+        }
+      }
+      return new ConstantResult(new TensorArray(outputs));
+    } finally {
+      RefUtil.freeRef(data);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJson(resources, dataSerializer);
+    json.addProperty("maxBytes", maxBytes);
+    return json;
+  }
+
+  @Override
+  protected boolean isShapePreserving() {
+    return true;
+  }
+
+  public void _free() {
+    clear();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ActivationCacheLayer addRef() {
+    return (ActivationCacheLayer) super.addRef();
+  }
+
+  @Nonnull
+  private static List<UUID> getKey(@Nonnull final TensorList[] data, final int index) {
+    final UUID[] hashes = new UUID[data.length];
+    for (int column = 0; column < data.length; column++) {
+      final Tensor tensor = data[column].get(index);
+      hashes[column] = contentHash(tensor.getDimensions(), tensor.getData());
+      tensor.freeRef();
+    }
+    return Arrays.asList(hashes);
+  }
+
+  /**
+   * Computes a 128-bit hash of a tensor's dimensions and values, as two independently seeded 64-bit
+   * hashes.
+   *
+   * @param dimensions the dimensions
+   * @param data       the data
+   * @return the hash
+   */
+  @Nonnull
+  private static UUID contentHash(@Nonnull final int[] dimensions, @Nonnull final double[] data) {
+    long h1 = 0x9E3779B97F4A7C15L;
+    long h2 = 0xC2B2AE3D27D4EB4FL;
+    for (int dimension : dimensions) {
+      h1 = mix(h1 ^ dimension);
+      h2 = mix(h2 + dimension);
+    }
+    for (double value : data) {
+      final long bits = Double.doubleToLongBits(value);
+      h1 = mix(h1 ^ bits);
+      h2 = mix(h2 + Long.rotateLeft(bits, 31));
+    }
+    return new UUID(h1, h2);
+  }
+
+  private static long mix(long h) {
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private boolean isPrefixFrozen() {
+    assert inner != null;
+    return isDeterministicAndFrozen(inner.addRef());
+  }
+
+  private static boolean isDeterministicAndFrozen(@Nonnull final Layer layer) {
+    try {
+      if (!layer.isFrozen() || layer instanceof StochasticComponent) return false;
+      if (layer instanceof WrapperLayer) {
+        final Layer inner = ((WrapperLayer) layer).getInner();
+        if (null != inner && !isDeterministicAndFrozen(inner)) return false;
+      }
+      final RefList<Layer> children = layer.getChildren();
+      try {
+        return children.stream().allMatch(child -> {
+          if (child == layer) {
+            child.freeRef();
+            return true;
+          }
+          return isDeterministicAndFrozen(child);
+        });
+      } finally {
+        children.freeRef();
+      }
+    } finally {
+      layer.freeRef();
+    }
+  }
+
+  @Nullable
+  private Tensor lookup(@Nonnull final List<UUID> key) {
+    final Tensor tensor = memory.get(key);
+    if (null != tensor) return tensor.addRef();
+    final File file = spilled.remove(key);
+    if (null == file) return null;
+    spillBytes -= file.length();
+    try {
+      final Tensor loaded = read(file);
+      store(key, loaded.addRef());
+      return loaded;
+    } catch (IOException e) {
+      log.warn("Error reading spilled activation " + file, e);
+      return null;
+    } finally {
+      file.delete();
+    }
+  }
+
+  private void store(@Nonnull final List<UUID> key, @Nonnull final Tensor tensor) {
+    synchronized (this) {
+      final Tensor previous = memory.put(key, tensor);
+      if (null != previous) {
+        bytes -= sizeOf(previous);
+        previous.freeRef();
+      }
+      bytes += sizeOf(tensor);
+      evict();
+    }
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<List<UUID>, Tensor>> iterator = memory.entrySet().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      final Map.Entry<List<UUID>, Tensor> entry = iterator.next();
+      final Tensor tensor = entry.getValue();
+      iterator.remove();
+      bytes -= sizeOf(tensor);
+      if (null != spillDirectory && sizeOf(tensor) <= maxSpillBytes) {
+        try {
+          final File file = write(tensor.addRef());
+          spilled.put(entry.getKey(), file);
+          spillBytes += file.length();
+        } catch (IOException e) {
+          log.warn("Error spilling activation", e);
+        }
+      }
+      tensor.freeRef();
+    }
+    trimSpill();
+  }
+
+  private void trimSpill() {
+    final Iterator<File> iterator = spilled.values().iterator();
+    while (spillBytes > maxSpillBytes && iterator.hasNext()) {
+      final File file = iterator.next();
+      iterator.remove();
+      spillBytes -= file.length();
+      file.delete();
+    }
+  }
+
+  private static long sizeOf(@Nonnull final Tensor tensor) {
+    return (long) tensor.length() * 8;
+  }
+
+  @Nonnull
+  private File write(@Nonnull final Tensor tensor) throws IOException {
+    assert spillDirectory != null;
+    Files.createDirectories(spillDirectory.toPath());
+    final File file = File.createTempFile("activation", ".bin", spillDirectory);
+    file.deleteOnExit();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      final int[] dimensions = tensor.getDimensions();
+      out.writeInt(dimensions.length);
+      for (int dimension : dimensions) {
+        out.writeInt(dimension);
+      }
+      final byte[] encoded = spillPrecision.toBytes(tensor.getData());
+      out.writeInt(spillPrecision.ordinal());
+      out.writeInt(encoded.length);
+      out.write(encoded);
+    } finally {
+      tensor.freeRef();
+    }
+    return file;
+  }
+
+  @Nonnull
+  private static Tensor read(@Nonnull final File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      final int[] dimensions = new int[in.readInt()];
+      for (int i = 0; i < dimensions.length; i++) {
+        dimensions[i] = in.readInt();
+      }
+      final SerialPrecision precision = SerialPrecision.values()[in.readInt()];
+      final byte[] encoded = new byte[in.readInt()];
+      in.readFully(encoded);
+      return new Tensor(precision.fromBytes(encoded), dimensions);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Wraps a layer (typically a network segment) so that its internal activations are discarded
+ * after the forward pass and recomputed from the segment inputs during the backward pass.
+ * Only the inputs and outputs of the segment are retained between passes.
+ * <p>
+ * Stochastic components inside the segment must not be reshuffled between the forward
+ * and backward pass, since the recomputed activations would otherwise differ.
+ */
+@SuppressWarnings("serial")
+public class CheckpointLayer extends WrapperLayer {
+
+  /**
+   * Instantiates a new Checkpoint layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   */
+  protected CheckpointLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json, rs);
+  }
+
+  /**
+   * Instantiates a new Checkpoint layer.
+   *
+   * @param inner the inner
+   */
+  public CheckpointLayer(@Nullable final Layer inner) {
+    super(inner);
+  }
+
+  /**
+   * From json checkpoint layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the checkpoint layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static CheckpointLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new CheckpointLayer(json, rs);
+  }
+
+  /**
+   * Evaluates the layer without retaining its internal activations.
+   * The forward pass is run on constant copies of the inputs; the layer is evaluated
+   * again against the original inputs when the gradient is accumulated.
+   *
+   * @param layer  the layer
+   * @param inputs the inputs
+   * @return the result
+   */
+  @Nonnull
+  public static Result evalCheckpoint(@Nonnull final Layer layer, @Nonnull final Result... inputs) {
+    Result forward = layer.eval(RefArrays.stream(RefUtil.addRef(inputs)).map(input -> {
+      TensorList data = input.getData();
+      input.freeRef();
+      return new ConstantResult(data);
+    }).toArray(Result[]::new));
+    assert forward != null;
+    boolean alive = forward.isAlive() || Result.anyAlive(RefUtil.addRef(inputs));
+    TensorList data = forward.getData();
+    forward.freeRef();
+    if (!alive) {
+      layer.freeRef();
+      RefUtil.freeRef(inputs);
+      return new Result(data);
+    }
+    return new Result(data, new CheckpointAccumulator(layer, inputs), true);
+  }
+
+  @Nullable
+  @Override
+  public Result eval(@Nullable final Result... array) {
+    assert inner != null;
+    return evalCheckpoint(inner.addRef(), array);
+  }
+
+  @Override
+  protected boolean isShapePreserving() {
+    return true;
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  CheckpointLayer addRef() {
+    return (CheckpointLayer) super.addRef();
+  }
+
+  private static final class CheckpointAccumulator extends Result.Accumulator {
+
+    private final Result[] inputs;
+    private Layer layer;
+
+    /**
+     * Instantiates a new Checkpoint accumulator.
+     *
+     * @param layer  the layer
+     * @param inputs the inputs
+     */
+    public CheckpointAccumulator(Layer layer, Result[] inputs) {
+      this.layer = layer;
+      this.inputs = inputs;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nullable TensorList delta) {
+      Result recomputed = layer.eval(RefUtil.addRef(inputs));
+      assert recomputed != null;
+      try {
+        recomputed.accumulate(buffer, delta);
+      } finally {
+        recomputed.freeRef();
+      }
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      RefUtil.freeRef(inputs);
+      layer.freeRef();
+      layer = null;
+    }
+  }
+}
@@ -153,6 +153,12 @@ public final class LoggingLayer extends LayerBase {
     }
   }
 
+  @Nullable
+  @Override
+  public int[] getOutputDimensions(@Nonnull int[]... inputDims) {
+    return 1 == inputDims.length ? inputDims[0] : null;
+  }
+
   @Nullable
   @Override
   public RefList<double[]> state() {
@@ -131,6 +131,11 @@ public final class LoggingWrapperLayer extends WrapperLayer {
     return new Result(data, accumulator, alive);
   }
 
+  @Override
+  protected boolean isShapePreserving() {
+    return true;
+  }
+
   public @SuppressWarnings("unused")
   void _free() {
     super._free();
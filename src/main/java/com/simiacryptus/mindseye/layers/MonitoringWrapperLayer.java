@@ -277,6 +277,11 @@ public final class MonitoringWrapperLayer extends WrapperLayer implements Monito
     this.recordSignalMetrics = recordSignalMetrics;
   }
 
+  @Override
+  protected boolean isShapePreserving() {
+    return true;
+  }
+
   public @SuppressWarnings("unused")
   void _free() {
     super._free();
@@ -115,6 +115,13 @@ public class ValueLayer extends LayerBase {
     return new Result(data, accumulator, !isFrozen());
   }
 
+  @Nullable
+  @Override
+  public int[] getOutputDimensions(@Nonnull int[]... inputDims) {
+    if (null == data || 0 == data.length) return null;
+    return data[0].getDimensions();
+  }
+
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
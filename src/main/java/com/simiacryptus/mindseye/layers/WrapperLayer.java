@@ -24,6 +24,7 @@ import com.simiacryptus.mindseye.lang.DataSerializer;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.LayerBase;
 import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefList;
 
@@ -41,6 +42,7 @@ public class WrapperLayer extends LayerBase {
    */
   @Nullable
   protected Layer inner;
+  private volatile long innerVersion = 0;
 
   /**
    * Instantiates a new Wrapper layer.
@@ -93,6 +95,16 @@ public class WrapperLayer extends LayerBase {
     if (null != this.inner)
       this.inner.freeRef();
     this.inner = inner;
+    innerVersion = DAGNetwork.nextTopologyVersion();
+  }
+
+  /**
+   * Gets the topology version issued when the inner layer was last replaced, or zero if it never was.
+   *
+   * @return the inner version
+   */
+  public long getInnerVersion() {
+    return innerVersion;
   }
 
   @Override
@@ -115,6 +127,24 @@ public class WrapperLayer extends LayerBase {
     return inner.eval(array);
   }
 
+  @Nullable
+  @Override
+  public int[] getOutputDimensions(@Nonnull int[]... inputDims) {
+    if (null == inner || !isShapePreserving()) return null;
+    return inner.getOutputDimensions(inputDims);
+  }
+
+  /**
+   * Whether this wrapper's output has the dimensions of the inner layer's output, so that output
+   * dimensions can be inferred from the inner layer. Wrappers which transform the inner output
+   * must leave this false.
+   *
+   * @return the boolean
+   */
+  protected boolean isShapePreserving() {
+    return false;
+  }
+
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
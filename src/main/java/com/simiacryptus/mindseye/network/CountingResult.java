@@ -47,7 +47,19 @@ public class CountingResult extends Result {
    * @param inner the inner
    */
   public CountingResult(@Nonnull final Result inner) {
-    super(inner.getData(), new CountingAccumulator(inner.getAccumulator()), inner.isAlive());
+    this(inner, false);
+  }
+
+  /**
+   * Instantiates a new Counting result. If mixed, the data and passback gradients are held in single
+   * precision when {@link CoreSettings#mixedPrecision} is enabled.
+   *
+   * @param inner the inner
+   * @param mixed whether the result may be held in single precision
+   */
+  public CountingResult(@Nonnull final Result inner, final boolean mixed) {
+    super(mixed ? FloatTensorList.mixed(inner.getData()) : inner.getData(),
+        new CountingAccumulator(inner.getAccumulator(), mixed), inner.isAlive());
     inner.freeRef();
   }
 
@@ -101,6 +113,7 @@ public class CountingResult extends Result {
     private final RefMap<StackTraceElement[], TensorList> passbackBuffers;
     @Nonnull
     private final List<StackTraceElement[]> accumulations;
+    private final boolean mixed;
     private Accumulator innerAccumulator;
 
     /**
@@ -109,6 +122,17 @@ public class CountingResult extends Result {
      * @param accumulator the accumulator
      */
     public CountingAccumulator(Accumulator accumulator) {
+      this(accumulator, false);
+    }
+
+    /**
+     * Instantiates a new Counting accumulator.
+     *
+     * @param accumulator the accumulator
+     * @param mixed       whether passback gradients may be held in single precision
+     */
+    public CountingAccumulator(Accumulator accumulator, final boolean mixed) {
+      this.mixed = mixed;
       innerAccumulator = accumulator;
       fwdLinks = new RefArrayList<>();
       passbackBuffers = new RefHashMap<>();
@@ -181,7 +205,7 @@ public class CountingResult extends Result {
       //assert allAlive();
       @NotNull StackTraceElement[] stackTrace = getStackTrace();
       synchronized (passbackBuffers) {
-        RefUtil.freeRef(passbackBuffers.put(stackTrace, data));
+        RefUtil.freeRef(passbackBuffers.put(stackTrace, mixed ? FloatTensorList.mixed(data) : data));
         if (passbackBuffers.size() > CoreSettings.INSTANCE().backpropAggregationSize) {
           RefUtil.freeRef(passbackBuffers.put(stackTrace, reduce()));
           //assert allAlive();
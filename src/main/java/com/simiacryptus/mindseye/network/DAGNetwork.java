@@ -24,8 +24,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
-import com.simiacryptus.mindseye.layers.StochasticComponent;
-import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.mindseye.layers.*;
 import com.simiacryptus.ref.lang.RefAware;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
@@ -39,6 +38,8 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The type Dag network.
@@ -48,6 +49,7 @@ public abstract class DAGNetwork extends LayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(DAGNetwork.class);
+  private static final AtomicLong topologyClock = new AtomicLong();
   /**
    * The Input handles.
    */
@@ -64,6 +66,20 @@ public abstract class DAGNetwork extends LayerBase {
    * The Internal nodes.
    */
   protected final RefLinkedHashMap<UUID, DAGNode> internalNodes = new RefLinkedHashMap<>();
+  @Nullable
+  private ExecutionPlan executionPlan;
+  private final Map<String, int[]> outputDimensionCache = new ConcurrentHashMap<>();
+  private volatile long outputDimensionVersion = -1;
+  @Nullable
+  private RefLinkedHashMap<UUID, Layer> layerIndex;
+  @Nullable
+  private RefList<Layer> layerList;
+  @Nullable
+  private RefList<DAGNode> nodeIndex;
+  private long indexVersion = -1;
+  private volatile long localVersion = nextTopologyVersion();
+  private long checkedClock = -1;
+  private long topologyVersion = 0;
 
   /**
    * Instantiates a new Dag network.
@@ -118,6 +134,16 @@ public abstract class DAGNetwork extends LayerBase {
     @Nonnull final UUID head = UUID.fromString(json.getAsJsonPrimitive("head").getAsString());
     initLinks(links, layersByNodeId, head);
     this.labels.putAll(nodeLabels);
+    final JsonArray checkpoints = json.getAsJsonArray("checkpoints");
+    if (null != checkpoints) {
+      for (@Nonnull final JsonElement item : checkpoints) {
+        final DAGNode node = getNodeById(UUID.fromString(item.getAsString()));
+        if (node instanceof InnerNode) {
+          ((InnerNode) node).setCheckpoint(true);
+        }
+        if (null != node) node.freeRef();
+      }
+    }
     assertConsistent();
   }
 
@@ -161,18 +187,75 @@ public abstract class DAGNetwork extends LayerBase {
     return temp_38_0003;
   }
 
+  /**
+   * Gets the topology version of this network, used to validate cached indexes. The version changes
+   * whenever a node, input or head of this network or of a nested network changes, a node is
+   * assigned a new layer, or a nested {@link WrapperLayer} is given a new inner layer. Changes to
+   * unrelated networks do not affect it.
+   *
+   * @return the topology version
+   */
+  public synchronized long getTopologyVersion() {
+    assertAlive();
+    final long clock = topologyClock.get();
+    if (clock == checkedClock) return topologyVersion;
+    final long[] version = {localVersion};
+    internalNodes.forEach((id, node) -> {
+      if (node instanceof InnerNode) {
+        final InnerNode innerNode = (InnerNode) node;
+        version[0] = Math.max(version[0], innerNode.getLayerVersion());
+        version[0] = Math.max(version[0], getTopologyVersion(innerNode.getLayer()));
+      }
+      node.freeRef();
+    });
+    checkedClock = clock;
+    topologyVersion = version[0];
+    return topologyVersion;
+  }
+
+  /**
+   * Gets the topology version of a layer: the version of a nested network, combined with the
+   * latest inner layer change of any wrappers around it. Other layers have version zero.
+   *
+   * @param layer the layer
+   * @return the topology version
+   */
+  public static long getTopologyVersion(@Nullable Layer layer) {
+    long version = 0;
+    while (layer instanceof WrapperLayer) {
+      final WrapperLayer wrapper = (WrapperLayer) layer;
+      version = Math.max(version, wrapper.getInnerVersion());
+      layer = wrapper.getInner();
+      wrapper.freeRef();
+    }
+    if (layer instanceof DAGNetwork) {
+      version = Math.max(version, ((DAGNetwork) layer).getTopologyVersion());
+    }
+    if (null != layer) layer.freeRef();
+    return version;
+  }
+
+  /**
+   * Issues a new topology version. Versions are drawn from one increasing sequence, so that a
+   * network's version, the maximum over its own changes and those of its nested layers, changes
+   * whenever any of them does.
+   *
+   * @return the topology version
+   */
+  public static long nextTopologyVersion() {
+    return topologyClock.incrementAndGet();
+  }
+
   /**
    * Gets layers.
    *
    * @return the layers
    */
   @Nonnull
-  public RefList<Layer> getLayers() {
-    RefList<Layer> list = new RefArrayList<>();
-    visitLayers(RefUtil.wrapInterface(layer -> {
-      list.add(layer);
-    }, RefUtil.addRef(list)));
-    return RefCollections.unmodifiableList(list);
+  public synchronized RefList<Layer> getLayers() {
+    updateIndex();
+    assert layerList != null;
+    return RefCollections.unmodifiableList(layerList.addRef());
   }
 
   /**
@@ -181,12 +264,23 @@ public abstract class DAGNetwork extends LayerBase {
    * @return the layers by id
    */
   @Nonnull
-  public RefMap<UUID, Layer> getLayersById() {
-    RefLinkedHashMap<UUID, Layer> map = new RefLinkedHashMap<>();
-    visitLayers(RefUtil.wrapInterface(layer -> {
-      RefUtil.freeRef(map.put(layer.getId(), layer));
-    }, RefUtil.addRef(map)));
-    return RefCollections.unmodifiableMap(map);
+  public synchronized RefMap<UUID, Layer> getLayersById() {
+    updateIndex();
+    assert layerIndex != null;
+    return RefCollections.unmodifiableMap(layerIndex.addRef());
+  }
+
+  /**
+   * Gets layer by id.
+   *
+   * @param id the id
+   * @return the layer, or null if no layer in this network (or any nested network) has the id
+   */
+  @Nullable
+  public synchronized Layer getLayerById(final UUID id) {
+    updateIndex();
+    assert layerIndex != null;
+    return layerIndex.get(id);
   }
 
   /**
@@ -194,15 +288,10 @@ public abstract class DAGNetwork extends LayerBase {
    *
    * @return the nodes
    */
-  public RefList<DAGNode> getNodes() {
-    RefList<DAGNode> allNodes = new RefArrayList<>();
-    this.internalNodes.forEach((k, v) -> {
-      allNodes.add(v);
-    });
-    this.inputNodes.forEach((k, v) -> {
-      allNodes.add(v);
-    });
-    return allNodes;
+  public synchronized RefList<DAGNode> getNodes() {
+    updateIndex();
+    assert nodeIndex != null;
+    return new RefArrayList<>(nodeIndex.addRef());
   }
 
   /**
@@ -321,6 +410,109 @@ public abstract class DAGNetwork extends LayerBase {
     }
   }
 
+  /**
+   * Simplify pipeline network.
+   *
+   * @return the pipeline network
+   * @see #simplify(boolean)
+   */
+  @Nonnull
+  public PipelineNetwork simplify() {
+    return simplify(false);
+  }
+
+  /**
+   * Builds a flattened copy of this network which shares its layers.
+   * Nested networks (including the results of {@link Explodable#explode()}) are inlined into
+   * a single graph, plain {@link WrapperLayer}s are removed and nodes which do not contribute
+   * to the head are dropped. Checkpointed nodes are kept intact.
+   *
+   * @param stripInstrumentation whether logging and monitoring wrappers are also removed
+   * @return the pipeline network
+   */
+  @Nonnull
+  public PipelineNetwork simplify(boolean stripInstrumentation) {
+    assertAlive();
+    final int inputs = inputHandles.size();
+    final PipelineNetwork target = new PipelineNetwork(inputs, getId(), getName());
+    final DAGNode[] targetInputs = new DAGNode[inputs];
+    for (int i = 0; i < inputs; i++) {
+      targetInputs[i] = target.getInput(i);
+    }
+    final Map<UUID, DAGNode> mapping = new HashMap<>();
+    final DAGNode head = simplify(target.addRef(), this.addRef(), targetInputs, mapping, getHead(), stripInstrumentation);
+    target.setHead(head);
+    this.labels.forEach((label, id) -> {
+      final DAGNode node = mapping.get(id);
+      if (null != node && target.internalNodes.containsKey(node.getId())) {
+        target.labels.put(label, node.getId());
+      }
+    });
+    mapping.values().forEach(node -> node.freeRef());
+    return target;
+  }
+
+  @Nonnull
+  private static DAGNode simplify(@Nonnull final DAGNetwork target, @Nonnull final DAGNetwork source,
+                                  @Nonnull final DAGNode[] sourceInputs, @Nonnull final Map<UUID, DAGNode> mapping,
+                                  @Nonnull final DAGNode node, final boolean stripInstrumentation) {
+    try {
+      final UUID id = node.getId();
+      if (source.inputNodes.containsKey(id)) {
+        return sourceInputs[source.inputHandles.indexOf(id)].addRef();
+      }
+      final DAGNode existing = mapping.get(id);
+      if (null != existing) {
+        return existing.addRef();
+      }
+      final DAGNode[] args = RefArrays.stream(node.getInputs())
+          .map(input -> simplify(target.addRef(), source.addRef(), RefUtil.addRef(sourceInputs), mapping, input, stripInstrumentation))
+          .toArray(DAGNode[]::new);
+      final boolean checkpoint = node instanceof InnerNode && ((InnerNode) node).isCheckpoint();
+      Layer layer = node.getLayer();
+      assert layer != null;
+      while (isRemovableWrapper(layer, stripInstrumentation)) {
+        final Layer inner = ((WrapperLayer) layer).getInner();
+        layer.freeRef();
+        layer = inner;
+      }
+      if (!checkpoint && layer instanceof Explodable) {
+        final Layer exploded = ((Explodable) layer).explode();
+        layer.freeRef();
+        layer = exploded;
+      }
+      final DAGNode result;
+      if (stripInstrumentation && layer instanceof LoggingLayer && 1 == args.length) {
+        layer.freeRef();
+        result = args[0];
+      } else if (!checkpoint && layer instanceof DAGNetwork && ((DAGNetwork) layer).inputHandles.size() == args.length) {
+        final DAGNetwork network = (DAGNetwork) layer;
+        final Map<UUID, DAGNode> nestedMapping = new HashMap<>();
+        result = simplify(target.addRef(), network.addRef(), args, nestedMapping, network.getHead(), stripInstrumentation);
+        nestedMapping.values().forEach(nestedNode -> nestedNode.freeRef());
+        network.freeRef();
+      } else {
+        final InnerNode innerNode = target.add(layer, args);
+        innerNode.setCheckpoint(checkpoint);
+        result = innerNode;
+      }
+      mapping.put(id, result.addRef());
+      return result;
+    } finally {
+      node.freeRef();
+      source.freeRef();
+      target.freeRef();
+      RefUtil.freeRef(sourceInputs);
+    }
+  }
+
+  private static boolean isRemovableWrapper(@Nonnull final Layer layer, final boolean stripInstrumentation) {
+    if (!(layer instanceof WrapperLayer)) return false;
+    final Class<? extends Layer> layerClass = layer.getClass();
+    if (WrapperLayer.class.equals(layerClass)) return true;
+    return stripInstrumentation && (layer instanceof MonitoringWrapperLayer || layer instanceof LoggingWrapperLayer);
+  }
+
   /**
    * Shuffle.
    *
@@ -384,6 +576,7 @@ public abstract class DAGNetwork extends LayerBase {
     RefUtil.freeRef(internalNodes.put(nodeId, node.addRef()));
     if (null != label)
       RefUtil.freeRef(labels.put(label, nodeId));
+    invalidateTopology();
     assertConsistent();
     return node;
   }
@@ -396,6 +589,7 @@ public abstract class DAGNetwork extends LayerBase {
     @Nonnull final UUID key = UUID.randomUUID();
     inputHandles.add(key);
     RefUtil.freeRef(inputNodes.put(key, new InputNode(key)));
+    invalidateTopology();
   }
 
   /**
@@ -414,7 +608,9 @@ public abstract class DAGNetwork extends LayerBase {
   }
 
   /**
-   * Build exe ctx graph evaluation context.
+   * Build exe ctx graph evaluation context. The context retains every node result until it is
+   * freed; {@link #eval(Result...)} instead uses the {@link ExecutionPlan}, which releases each
+   * result after its last consumer.
    *
    * @param inputs the inputs
    * @return the graph evaluation context
@@ -485,13 +681,76 @@ public abstract class DAGNetwork extends LayerBase {
   @Override
   public Result eval(@Nullable final Result... input) {
     assertAlive();
-    @Nonnull
-    DAGNode head = getHead();
-    assert head != null;
+    ExecutionPlan plan = getExecutionPlan();
+    try {
+      return plan.eval(input);
+    } finally {
+      plan.freeRef();
+    }
+  }
+
+  @Nonnull
+  @Override
+  public int[] getOutputDimensions(@Nonnull int[]... inputDims) {
+    assertAlive();
+    // Nested networks and wrapped layers can change without this network's nodes changing
+    final long version = getTopologyVersion();
+    if (version != outputDimensionVersion) {
+      outputDimensionCache.clear();
+      outputDimensionVersion = version;
+    }
+    final String key = version + ":" + Arrays.deepToString(inputDims);
+    int[] outputDims = outputDimensionCache.get(key);
+    if (null == outputDims) {
+      ExecutionPlan plan = getExecutionPlan();
+      try {
+        outputDims = plan.getOutputDimensions(inputDims);
+      } finally {
+        plan.freeRef();
+      }
+      outputDimensionCache.put(key, outputDims);
+    }
+    return Arrays.copyOf(outputDims, outputDims.length);
+  }
+
+  @Nonnull
+  @Override
+  public TensorList infer(@Nonnull final TensorList... inputs) {
+    assertAlive();
+    ExecutionPlan plan = getExecutionPlan();
     try {
-      return head.get(buildExeCtx(input), null);
+      return plan.infer(inputs);
     } finally {
-      head.freeRef();
+      plan.freeRef();
+    }
+  }
+
+  /**
+   * Gets the compiled execution plan, rebuilding it if the topology has changed since it was compiled.
+   *
+   * @return the execution plan
+   */
+  @Nonnull
+  synchronized ExecutionPlan getExecutionPlan() {
+    assertAlive();
+    if (null != executionPlan && !executionPlan.getHeadId().equals(getHeadId())) {
+      invalidateTopology();
+    }
+    if (null == executionPlan) {
+      executionPlan = new ExecutionPlan(this.addRef());
+    }
+    return executionPlan.addRef();
+  }
+
+  /**
+   * Discards state derived from the network topology. Called whenever nodes, inputs or the head change.
+   */
+  protected synchronized void invalidateTopology() {
+    localVersion = nextTopologyVersion();
+    outputDimensionCache.clear();
+    if (null != executionPlan) {
+      executionPlan.freeRef();
+      executionPlan = null;
     }
   }
 
@@ -506,6 +765,18 @@ public abstract class DAGNetwork extends LayerBase {
     return internalNodes.get(k);
   }
 
+  /**
+   * Gets node by label.
+   *
+   * @param label the label
+   * @return the node, or null if the label is not defined
+   */
+  @Nullable
+  public DAGNode getNodeByLabel(final CharSequence label) {
+    final UUID id = labels.get(label);
+    return null == id ? null : getNodeById(id);
+  }
+
   /**
    * Gets input.
    *
@@ -533,6 +804,7 @@ public abstract class DAGNetwork extends LayerBase {
     @Nonnull final JsonObject layerMap = new JsonObject();
     @Nonnull final JsonObject nodeMap = new JsonObject();
     @Nonnull final JsonObject links = new JsonObject();
+    @Nonnull final JsonArray checkpoints = new JsonArray();
     this.internalNodes.forEach((id, node) -> {
       @Nonnull final JsonArray linkArray = new JsonArray();
       RefArrays.stream(node.getInputs()).forEach((@Nonnull final DAGNode input) -> {
@@ -541,6 +813,9 @@ public abstract class DAGNetwork extends LayerBase {
       });
       @Nullable final Layer layer = node.getLayer();
       @Nonnull final String nodeId = node.getId().toString();
+      if (node instanceof InnerNode && ((InnerNode) node).isCheckpoint()) {
+        checkpoints.add(new JsonPrimitive(nodeId));
+      }
       node.freeRef();
       RefUtil.freeRef(id);
       assert layer != null;
@@ -553,6 +828,7 @@ public abstract class DAGNetwork extends LayerBase {
     json.add("nodes", nodeMap);
     json.add("layers", layerMap);
     json.add("links", links);
+    if (0 < checkpoints.size()) json.add("checkpoints", checkpoints);
     @Nonnull final JsonObject labels = new JsonObject();
     this.labels.forEach((k, v) -> {
       labels.addProperty(k.toString(), v.toString());
@@ -568,6 +844,7 @@ public abstract class DAGNetwork extends LayerBase {
   public synchronized void reset() {
     this.internalNodes.clear();
     labels.clear();
+    invalidateTopology();
   }
 
   @Override
@@ -658,6 +935,8 @@ public abstract class DAGNetwork extends LayerBase {
   }
 
   public void _free() {
+    invalidateTopology();
+    clearIndex();
     internalNodes.freeRef();
     inputNodes.freeRef();
     inputHandles.freeRef();
@@ -687,6 +966,46 @@ public abstract class DAGNetwork extends LayerBase {
     return true;
   }
 
+  private synchronized void updateIndex() {
+    assertAlive();
+    final long version = getTopologyVersion();
+    if (null != layerIndex && indexVersion == version) return;
+    clearIndex();
+    RefLinkedHashMap<UUID, Layer> layers = new RefLinkedHashMap<>();
+    RefList<Layer> list = new RefArrayList<>();
+    visitLayers(RefUtil.wrapInterface(layer -> {
+      list.add(layer.addRef());
+      RefUtil.freeRef(layers.put(layer.getId(), layer));
+    }, layers.addRef(), list.addRef()));
+    RefList<DAGNode> nodes = new RefArrayList<>();
+    this.internalNodes.forEach((k, v) -> {
+      nodes.add(v);
+    });
+    this.inputNodes.forEach((k, v) -> {
+      nodes.add(v);
+    });
+    layerIndex = layers;
+    layerList = list;
+    nodeIndex = nodes;
+    indexVersion = version;
+  }
+
+  private synchronized void clearIndex() {
+    if (null != layerIndex) {
+      layerIndex.freeRef();
+      layerIndex = null;
+    }
+    if (null != layerList) {
+      layerList.freeRef();
+      layerList = null;
+    }
+    if (null != nodeIndex) {
+      nodeIndex.freeRef();
+      nodeIndex = null;
+    }
+    indexVersion = -1;
+  }
+
   @NotNull
   private RefMap<UUID, Layer> getLayersByNodeId(JsonObject jsonNodes, RefMap<UUID, Layer> source_layersByLayerId) {
     @Nonnull final RefMap<UUID, Layer> source_layersByNodeId = new RefHashMap<>();
@@ -749,6 +1068,7 @@ public abstract class DAGNetwork extends LayerBase {
     @Nonnull final InnerNode node = new InnerNode(layer, newNodeId,
         getDependencies(nodeLinks, newNodeId));
     RefUtil.freeRef(internalNodes.put(node.getId(), node));
+    invalidateTopology();
     assertConsistent();
   }
 }
@@ -0,0 +1,804 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.mindseye.lang.ConstantResult;
+import com.simiacryptus.mindseye.lang.CoreSettings;
+import com.simiacryptus.mindseye.lang.DoubleBuffer;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.layers.BlockingComponent;
+import com.simiacryptus.mindseye.layers.StochasticComponent;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCounting;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A compiled evaluation order for a {@link DAGNetwork}.
+ * Nodes reachable from the head are sorted topologically and addressed by integer slots:
+ * slots <code>[0, inputCount)</code> hold the network inputs and slot <code>inputCount + k</code>
+ * holds the output of the k-th node. Each slot is released once its last consumer has read it.
+ * <p>
+ * Unless evaluation is single threaded or the graph is a simple chain, nodes are scheduled as
+ * dataflow tasks which start as soon as their inputs are available, so independent branches run
+ * concurrently anywhere in the graph.
+ */
+class ExecutionPlan extends ReferenceCountingBase {
+
+  private static final Logger log = LoggerFactory.getLogger(ExecutionPlan.class);
+  @Nullable
+  private static volatile ForkJoinPool computePool = null;
+  @Nullable
+  private static volatile ExecutorService blockingPool = null;
+
+  @Nonnull
+  private final UUID headId;
+  @Nonnull
+  private final InnerNode[] nodes;
+  @Nonnull
+  private final int[][] inputSlots;
+  @Nonnull
+  private final int[] consumerCounts;
+  private final int inputCount;
+  private final int headSlot;
+  private final boolean chain;
+  @Nonnull
+  private final boolean[] constantCandidates;
+  @Nonnull
+  private final FoldedValue[] foldedValues;
+  private final boolean hasConstantCandidates;
+
+  private static final NodeEvaluator<Result> TRAINING = new NodeEvaluator<Result>() {
+    @Nonnull
+    @Override
+    public Result input(@Nonnull Result input) {
+      return new CountingResult(input);
+    }
+
+    @Nonnull
+    @Override
+    public Result[] newArray(int length) {
+      return new Result[length];
+    }
+
+    @Nullable
+    @Override
+    public Result eval(@Nonnull InnerNode node, @Nonnull Layer layer, @Nonnull Result[] args, boolean head) {
+      final Result result = node.eval(layer, args);
+      return null == result ? null : new CountingResult(result, !head);
+    }
+
+    @Nonnull
+    @Override
+    public Result constant(@Nonnull TensorList data) {
+      return new CountingResult(new ConstantResult(data));
+    }
+
+    @Nonnull
+    @Override
+    public TensorList getData(@Nonnull Result value) {
+      return value.getData();
+    }
+
+    @Override
+    public void read(@Nonnull Result value, @Nullable Layer consumer) {
+      final Result.Accumulator accumulator = value.getAccumulator();
+      if (accumulator instanceof CountingResult.CountingAccumulator) {
+        ((CountingResult.CountingAccumulator) accumulator).incrementFwd(consumer);
+      } else if (null != consumer) {
+        consumer.freeRef();
+      }
+      accumulator.freeRef();
+    }
+  };
+
+  private static final NodeEvaluator<TensorList> INFERENCE = new NodeEvaluator<TensorList>() {
+    @Nonnull
+    @Override
+    public TensorList input(@Nonnull TensorList input) {
+      return input;
+    }
+
+    @Nonnull
+    @Override
+    public TensorList[] newArray(int length) {
+      return new TensorList[length];
+    }
+
+    @Nonnull
+    @Override
+    public TensorList eval(@Nonnull InnerNode node, @Nonnull Layer layer, @Nonnull TensorList[] args, boolean head) {
+      try {
+        return layer.infer(args);
+      } finally {
+        layer.freeRef();
+      }
+    }
+
+    @Nonnull
+    @Override
+    public TensorList constant(@Nonnull TensorList data) {
+      return data;
+    }
+
+    @Nonnull
+    @Override
+    public TensorList getData(@Nonnull TensorList value) {
+      return value.addRef();
+    }
+
+    @Override
+    public void read(@Nonnull TensorList value, @Nullable Layer consumer) {
+      if (null != consumer) consumer.freeRef();
+    }
+  };
+
+  /**
+   * Instantiates a new Execution plan.
+   *
+   * @param network the network
+   */
+  ExecutionPlan(@Nonnull final DAGNetwork network) {
+    try {
+      inputCount = network.inputHandles.size();
+      final Map<UUID, Integer> slots = new HashMap<>();
+      for (int i = 0; i < inputCount; i++) {
+        slots.put(network.inputHandles.get(i), i);
+      }
+      final int capacity = network.internalNodes.size();
+      final InnerNode[] nodeBuffer = new InnerNode[capacity];
+      final int[][] slotBuffer = new int[capacity][];
+      final int[] count = new int[]{0};
+      final DAGNode head = network.getHead();
+      assert head != null;
+      headId = head.getId();
+      headSlot = visit(head, slots, nodeBuffer, slotBuffer, count);
+      nodes = RefArrays.copyOf(nodeBuffer, count[0]);
+      inputSlots = Arrays.copyOf(slotBuffer, count[0]);
+      consumerCounts = new int[inputCount + nodes.length];
+      for (int[] nodeInputs : inputSlots) {
+        for (int slot : nodeInputs) {
+          consumerCounts[slot]++;
+        }
+      }
+      consumerCounts[headSlot]++;
+      chain = isChain(inputSlots, inputCount);
+      constantCandidates = new boolean[nodes.length];
+      boolean anyCandidate = false;
+      for (int k = 0; k < nodes.length; k++) {
+        boolean candidate = true;
+        for (int slot : inputSlots[k]) {
+          if (slot < inputCount || !constantCandidates[slot - inputCount]) {
+            candidate = false;
+            break;
+          }
+        }
+        constantCandidates[k] = candidate;
+        anyCandidate |= candidate;
+      }
+      hasConstantCandidates = anyCandidate;
+      foldedValues = new FoldedValue[nodes.length];
+    } finally {
+      network.freeRef();
+    }
+  }
+
+  /**
+   * Gets head id.
+   *
+   * @return the head id
+   */
+  @Nonnull
+  public UUID getHeadId() {
+    return headId;
+  }
+
+  /**
+   * Gets node count.
+   *
+   * @return the node count
+   */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * Evaluates the plan.
+   *
+   * @param inputs the inputs
+   * @return the result
+   */
+  @Nonnull
+  public Result eval(@Nonnull final Result... inputs) {
+    assertAlive();
+    if (inputs.length != inputCount) {
+      RefUtil.freeRef(inputs);
+      throw new IllegalArgumentException(inputs.length + " != " + inputCount);
+    }
+    return run(inputs, TRAINING);
+  }
+
+  /**
+   * Evaluates the plan without building any backward structures. Each node output
+   * is freed as soon as its last consumer has been evaluated.
+   *
+   * @param inputs the inputs
+   * @return the tensor list
+   */
+  @Nonnull
+  public TensorList infer(@Nonnull final TensorList... inputs) {
+    assertAlive();
+    if (inputs.length != inputCount) {
+      RefUtil.freeRef(inputs);
+      throw new IllegalArgumentException(inputs.length + " != " + inputCount);
+    }
+    return run(inputs, INFERENCE);
+  }
+
+  /**
+   * Propagates input dimensions through the plan. Each node uses its layer's static shape
+   * inference where available, falling back to evaluating that single layer.
+   *
+   * @param inputDims the input dims
+   * @return the output dimensions
+   */
+  @Nonnull
+  public int[] getOutputDimensions(@Nonnull final int[]... inputDims) {
+    assertAlive();
+    if (inputDims.length != inputCount) {
+      throw new IllegalArgumentException(inputDims.length + " != " + inputCount);
+    }
+    final int[][] dims = new int[consumerCounts.length][];
+    RefSystem.arraycopy(inputDims, 0, dims, 0, inputCount);
+    for (int k = 0; k < nodes.length; k++) {
+      final int[] slots = inputSlots[k];
+      final int[][] args = new int[slots.length][];
+      for (int j = 0; j < slots.length; j++) {
+        args[j] = dims[slots[j]];
+      }
+      final Layer layer = nodes[k].getLayer();
+      try {
+        dims[inputCount + k] = layer.evalDims(args);
+      } finally {
+        layer.freeRef();
+      }
+    }
+    return dims[headSlot];
+  }
+
+  /**
+   * Gets the pool used for asynchronous node evaluation.
+   *
+   * @return the compute pool
+   */
+  @Nonnull
+  public static ForkJoinPool getComputePool() {
+    if (null == computePool) {
+      synchronized (ExecutionPlan.class) {
+        if (null == computePool) {
+          computePool = new ForkJoinPool(CoreSettings.INSTANCE().jvmThreads);
+        }
+      }
+    }
+    return computePool;
+  }
+
+  /**
+   * Gets the executor used for {@link BlockingComponent} layers.
+   * Virtual threads are used when the running JVM provides them.
+   *
+   * @return the blocking pool
+   */
+  @Nonnull
+  public static ExecutorService getBlockingPool() {
+    if (null == blockingPool) {
+      synchronized (ExecutionPlan.class) {
+        if (null == blockingPool) {
+          blockingPool = newBlockingPool();
+        }
+      }
+    }
+    return blockingPool;
+  }
+
+  public void _free() {
+    synchronized (foldedValues) {
+      for (FoldedValue value : foldedValues) {
+        if (null != value) value.data.freeRef();
+      }
+    }
+    RefUtil.freeRef(nodes);
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ExecutionPlan addRef() {
+    return (ExecutionPlan) super.addRef();
+  }
+
+  private <T extends ReferenceCounting> T run(@Nonnull final T[] inputs, @Nonnull final NodeEvaluator<T> evaluator) {
+    CoreSettings settings = CoreSettings.INSTANCE();
+    final Folding folding = hasConstantCandidates ? getFolding() : null;
+    try {
+      if (chain || settings.singleThreaded || !settings.asyncGraphEvaluation || isComputeThread()) {
+        return runSequential(inputs, evaluator, folding);
+      } else {
+        return runAsync(inputs, evaluator, folding);
+      }
+    } finally {
+      if (null != folding) folding.freeHits();
+    }
+  }
+
+  @Nonnull
+  @SuppressWarnings("unchecked")
+  private <T extends ReferenceCounting> T runSequential(@Nonnull final T[] inputs, @Nonnull final NodeEvaluator<T> evaluator,
+                                                        @Nullable final Folding folding) {
+    final int[] counts = null == folding ? consumerCounts : folding.counts;
+    final T[] values = (T[]) new ReferenceCounting[counts.length];
+    final AtomicIntegerArray remaining = new AtomicIntegerArray(counts);
+    for (int i = 0; i < inputCount; i++) {
+      if (0 < counts[i]) {
+        values[i] = evaluator.input(RefUtil.addRef(inputs[i]));
+      }
+    }
+    RefUtil.freeRef(inputs);
+    try {
+      for (int k = 0; k < nodes.length; k++) {
+        if (null != folding && folding.skipped[k]) continue;
+        if (null != folding && folding.isHit(k)) {
+          values[inputCount + k] = evaluator.constant(folding.takeHit(k));
+          continue;
+        }
+        final int[] slots = inputSlots[k];
+        final Layer layer = nodes[k].getLayer();
+        final T[] args = evaluator.newArray(slots.length);
+        try {
+          for (int j = 0; j < slots.length; j++) {
+            final int slot = slots[j];
+            args[j] = read(evaluator, values[slot], remaining, slot, layer.addRef());
+            if (0 == remaining.get(slot)) values[slot] = null;
+          }
+        } catch (RuntimeException | Error e) {
+          RefUtil.freeRef(args);
+          layer.freeRef();
+          throw e;
+        }
+        values[inputCount + k] = evalNode(evaluator, k, layer, args, folding);
+      }
+      final T head = read(evaluator, values[headSlot], remaining, headSlot, null);
+      values[headSlot] = null;
+      return head;
+    } finally {
+      RefUtil.freeRef(values);
+    }
+  }
+
+  @Nonnull
+  @SuppressWarnings("unchecked")
+  private <T extends ReferenceCounting> T runAsync(@Nonnull final T[] inputs, @Nonnull final NodeEvaluator<T> evaluator,
+                                                   @Nullable final Folding folding) {
+    final int[] counts = null == folding ? consumerCounts : folding.counts;
+    final CompletableFuture<T>[] futures = new CompletableFuture[counts.length];
+    final AtomicIntegerArray remaining = new AtomicIntegerArray(counts);
+    for (int i = 0; i < inputCount; i++) {
+      futures[i] = CompletableFuture.completedFuture(0 < counts[i] ? evaluator.input(RefUtil.addRef(inputs[i])) : null);
+    }
+    RefUtil.freeRef(inputs);
+    final ForkJoinPool pool = getComputePool();
+    for (int k = 0; k < nodes.length; k++) {
+      if (null != folding && folding.skipped[k]) {
+        futures[inputCount + k] = CompletableFuture.completedFuture(null);
+        continue;
+      }
+      if (null != folding && folding.isHit(k)) {
+        futures[inputCount + k] = CompletableFuture.completedFuture(evaluator.constant(folding.takeHit(k)));
+        continue;
+      }
+      final int index = k;
+      final int[] slots = inputSlots[k];
+      final CompletableFuture<?>[] dependencies = new CompletableFuture[slots.length];
+      for (int j = 0; j < slots.length; j++) {
+        dependencies[j] = futures[slots[j]];
+      }
+      final Layer layer = nodes[k].getLayer();
+      final Executor executor = layer instanceof BlockingComponent ? getBlockingPool() : pool;
+      futures[inputCount + k] = CompletableFuture.allOf(dependencies).thenApplyAsync(x -> {
+        final T[] args = evaluator.newArray(slots.length);
+        try {
+          for (int j = 0; j < slots.length; j++) {
+            args[j] = read(evaluator, futures[slots[j]].join(), remaining, slots[j], layer.addRef());
+          }
+        } catch (RuntimeException | Error e) {
+          RefUtil.freeRef(args);
+          throw e;
+        }
+        return evalNode(evaluator, index, layer.addRef(), args, folding);
+      }, executor).whenComplete((result, error) -> layer.freeRef());
+    }
+    try {
+      return read(evaluator, futures[headSlot].join(), remaining, headSlot, null);
+    } catch (CompletionException e) {
+      release(futures, remaining);
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Whether the calling thread is a worker of the compute pool, as when a nested network is evaluated
+   * by a node of an enclosing asynchronous plan. Such plans run inline, since blocking the worker on
+   * the nested head would tie up the pool the nested nodes are scheduled on.
+   */
+  private static boolean isComputeThread() {
+    final ForkJoinPool pool = computePool;
+    return null != pool && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool;
+  }
+
+  private static <T extends ReferenceCounting> void release(@Nonnull final CompletableFuture<T>[] futures, @Nonnull final AtomicIntegerArray remaining) {
+    try {
+      CompletableFuture.allOf(futures).exceptionally(e -> null).join();
+    } catch (Throwable e) {
+      log.debug("Error waiting for graph evaluation", e);
+    }
+    for (int slot = 0; slot < futures.length; slot++) {
+      if (0 < remaining.get(slot) && !futures[slot].isCompletedExceptionally()) {
+        RefUtil.freeRef(futures[slot].join());
+      }
+    }
+  }
+
+  @Nonnull
+  private <T extends ReferenceCounting> T evalNode(@Nonnull final NodeEvaluator<T> evaluator, final int k,
+                                                   @Nonnull final Layer layer, @Nonnull final T[] args,
+                                                   @Nullable final Folding folding) {
+    final InnerNode node = nodes[k];
+    final T result;
+    try {
+      result = evaluator.eval(node, layer, RefUtil.addRef(args), inputCount + k == headSlot);
+    } catch (Throwable e) {
+      throw new RuntimeException("Error executing network component", e);
+    } finally {
+      // The evaluated layer holds its own references; these are the ones read from upstream slots
+      RefUtil.freeRef(args);
+    }
+    if (null == result) {
+      throw new IllegalStateException(RefString.format("Null result from %s", node.getId()));
+    }
+    if (null != folding && folding.frontier[k]) {
+      setFoldedValue(k, folding.stamps[k], evaluator.getData(result));
+    }
+    return result;
+  }
+
+  /**
+   * Determines which constant candidates can be folded in this pass: the node's layer and all
+   * of its children must be frozen and non-stochastic, and all of its inputs must be foldable.
+   * Each foldable node is stamped with a fingerprint of its layer id, the
+   * {@link DoubleBuffer#getArrayId(double[]) id} and {@link DoubleBuffer#getVersion(double[]) version}
+   * of each weight array, and its input stamps.
+   * <p>
+   * Only the frontier is cached: foldable nodes read by a non-foldable node, or the head. A frontier
+   * node whose cached value matches its stamp is replayed as a constant, and foldable nodes that are
+   * then read by nothing else are skipped. On a miss, the interior of the folded subgraph is evaluated
+   * again to recompute the frontier value.
+   */
+  @Nonnull
+  private Folding getFolding() {
+    final Folding folding = new Folding(nodes.length, consumerCounts.length);
+    for (int k = 0; k < nodes.length; k++) {
+      if (!constantCandidates[k]) continue;
+      long stamp = 17;
+      boolean foldable = true;
+      for (int slot : inputSlots[k]) {
+        final int input = slot - inputCount;
+        if (!folding.foldable[input]) {
+          foldable = false;
+          break;
+        }
+        stamp = mixStamp(stamp, folding.stamps[input]);
+      }
+      if (foldable) {
+        final Layer layer = nodes[k].getLayer();
+        try {
+          final long layerStamp = getConstantStamp(layer.addRef());
+          if (0 == layerStamp) {
+            foldable = false;
+          } else {
+            stamp = mixStamp(stamp, layerStamp);
+          }
+        } finally {
+          layer.freeRef();
+        }
+      }
+      folding.foldable[k] = foldable;
+      folding.stamps[k] = stamp;
+    }
+    final int headNode = headSlot - inputCount;
+    if (0 <= headNode) folding.frontier[headNode] = folding.foldable[headNode];
+    for (int k = 0; k < nodes.length; k++) {
+      if (folding.foldable[k]) continue;
+      for (int slot : inputSlots[k]) {
+        final int input = slot - inputCount;
+        if (0 <= input && folding.foldable[input]) folding.frontier[input] = true;
+      }
+    }
+    for (int k = 0; k < nodes.length; k++) {
+      if (folding.frontier[k]) {
+        folding.hits[k] = getFoldedValue(k, folding.stamps[k]);
+      } else {
+        clearFoldedValue(k);
+      }
+    }
+    final boolean[] needed = new boolean[consumerCounts.length];
+    needed[headSlot] = true;
+    folding.counts[headSlot]++;
+    for (int k = nodes.length - 1; k >= 0; k--) {
+      if (!needed[inputCount + k]) {
+        folding.skipped[k] = true;
+        if (null != folding.hits[k]) folding.takeHit(k).freeRef();
+      } else if (null == folding.hits[k]) {
+        for (int slot : inputSlots[k]) {
+          needed[slot] = true;
+          folding.counts[slot]++;
+        }
+      }
+    }
+    return folding;
+  }
+
+  /**
+   * Folds a value into a stamp. The multiply-add is followed by a bijective 64-bit finalizer, so
+   * that, unlike a plain polynomial hash, small ids and versions cannot cancel each other out.
+   */
+  private static long mixStamp(final long stamp, final long value) {
+    long z = stamp * 0x9E3779B97F4A7C15L + value;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Gets a fingerprint of a frozen, deterministic layer's weights, or zero if the layer cannot be
+   * treated as constant. The fingerprint covers the unique id and modification version of each
+   * weight array rather than its contents, so it costs a lookup per array. Writes through
+   * {@link com.simiacryptus.mindseye.lang.Tensor} mutators bump the version; weights written by
+   * indexing the array directly are not detected.
+   */
+  private static long getConstantStamp(@Nonnull final Layer layer) {
+    try {
+      if (!layer.isFrozen() || layer instanceof StochasticComponent) return 0;
+      final UUID id = layer.getId();
+      long stamp = mixStamp(id.getMostSignificantBits(), id.getLeastSignificantBits());
+      final RefList<Layer> children = layer.getChildren();
+      try {
+        for (int i = 0; i < children.size(); i++) {
+          final Layer child = children.get(i);
+          try {
+            if (!child.isFrozen() || child instanceof StochasticComponent) return 0;
+            final RefList<double[]> state = child.state();
+            if (null != state) {
+              for (int j = 0; j < state.size(); j++) {
+                final double[] weights = state.get(j);
+                stamp = mixStamp(stamp, DoubleBuffer.getArrayId(weights));
+                stamp = mixStamp(stamp, DoubleBuffer.getVersion(weights));
+              }
+              state.freeRef();
+            }
+          } finally {
+            child.freeRef();
+          }
+        }
+      } finally {
+        children.freeRef();
+      }
+      return 0 == stamp ? 1 : stamp;
+    } finally {
+      layer.freeRef();
+    }
+  }
+
+  @Nullable
+  private TensorList getFoldedValue(final int k, final long stamp) {
+    synchronized (foldedValues) {
+      final FoldedValue value = foldedValues[k];
+      if (null == value || value.stamp != stamp) return null;
+      return value.data.addRef();
+    }
+  }
+
+  private void setFoldedValue(final int k, final long stamp, @Nonnull final TensorList data) {
+    synchronized (foldedValues) {
+      if (null != foldedValues[k]) foldedValues[k].data.freeRef();
+      foldedValues[k] = new FoldedValue(stamp, data);
+    }
+  }
+
+  private void clearFoldedValue(final int k) {
+    synchronized (foldedValues) {
+      if (null != foldedValues[k]) {
+        foldedValues[k].data.freeRef();
+        foldedValues[k] = null;
+      }
+    }
+  }
+
+  /**
+   * Reads a slot on behalf of a consumer. The returned reference is always new; the slot's own
+   * reference is released by whichever reader brings the slot's remaining count to zero.
+   */
+  @Nonnull
+  @SuppressWarnings("unchecked")
+  private static <T extends ReferenceCounting> T read(@Nonnull final NodeEvaluator<T> evaluator, @Nonnull final T value,
+                                                      @Nonnull final AtomicIntegerArray remaining, final int slot,
+                                                      @Nullable final Layer consumer) {
+    evaluator.read(value, consumer);
+    final T reference = (T) value.addRef();
+    if (0 == remaining.decrementAndGet(slot)) {
+      value.freeRef();
+    }
+    return reference;
+  }
+
+  private static boolean isChain(@Nonnull final int[][] inputSlots, final int inputCount) {
+    for (int k = 1; k < inputSlots.length; k++) {
+      boolean dependsOnPrevious = false;
+      for (int slot : inputSlots[k]) {
+        if (slot == inputCount + k - 1) {
+          dependsOnPrevious = true;
+          break;
+        }
+      }
+      if (!dependsOnPrevious) return false;
+    }
+    return true;
+  }
+
+  @Nonnull
+  private static ExecutorService newBlockingPool() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+    }
+  }
+
+  private int visit(@Nonnull final DAGNode node, @Nonnull final Map<UUID, Integer> slots,
+                    @Nonnull final InnerNode[] nodeBuffer, @Nonnull final int[][] slotBuffer, @Nonnull final int[] count) {
+    final UUID id = node.getId();
+    final Integer existing = slots.get(id);
+    if (null != existing) {
+      node.freeRef();
+      return existing;
+    }
+    if (!(node instanceof InnerNode) || count[0] >= nodeBuffer.length) {
+      node.freeRef();
+      throw new IllegalStateException(RefString.format("Node %s is not part of this network", id));
+    }
+    final DAGNode[] inputs = node.getInputs();
+    final int[] nodeInputs = new int[inputs.length];
+    for (int j = 0; j < inputs.length; j++) {
+      nodeInputs[j] = visit(inputs[j].addRef(), slots, nodeBuffer, slotBuffer, count);
+    }
+    RefUtil.freeRef(inputs);
+    final int index = count[0]++;
+    nodeBuffer[index] = (InnerNode) node;
+    slotBuffer[index] = nodeInputs;
+    final int slot = inputCount + index;
+    slots.put(id, slot);
+    return slot;
+  }
+
+  private interface NodeEvaluator<T extends ReferenceCounting> {
+    @Nonnull
+    T input(@Nonnull T input);
+
+    @Nonnull
+    T[] newArray(int length);
+
+    /**
+     * Evaluates a node. Intermediate results may be held in single precision; the head result, which
+     * is usually the loss, is kept in double precision.
+     */
+    @Nullable
+    T eval(@Nonnull InnerNode node, @Nonnull Layer layer, @Nonnull T[] args, boolean head);
+
+    @Nonnull
+    T constant(@Nonnull TensorList data);
+
+    @Nonnull
+    TensorList getData(@Nonnull T value);
+
+    void read(@Nonnull T value, @Nullable Layer consumer);
+  }
+
+  private static final class Folding {
+    @Nonnull
+    final boolean[] foldable;
+    @Nonnull
+    final long[] stamps;
+    @Nonnull
+    final boolean[] frontier;
+    @Nonnull
+    final boolean[] skipped;
+    @Nonnull
+    final TensorList[] hits;
+    @Nonnull
+    final int[] counts;
+
+    private Folding(final int size, final int slots) {
+      foldable = new boolean[size];
+      stamps = new long[size];
+      frontier = new boolean[size];
+      skipped = new boolean[size];
+      hits = new TensorList[size];
+      counts = new int[slots];
+    }
+
+    boolean isHit(final int k) {
+      return null != hits[k];
+    }
+
+    @Nonnull
+    TensorList takeHit(final int k) {
+      final TensorList hit = hits[k];
+      assert hit != null;
+      hits[k] = null;
+      return hit;
+    }
+
+    void freeHits() {
+      RefUtil.freeRef(hits);
+      Arrays.fill(hits, null);
+    }
+  }
+
+  private static final class FoldedValue {
+    final long stamp;
+    @Nonnull
+    final TensorList data;
+
+    private FoldedValue(final long stamp, @Nonnull final TensorList data) {
+      this.stamp = stamp;
+      this.data = data;
+    }
+  }
+}
@@ -22,6 +22,7 @@ package com.simiacryptus.mindseye.network;
 import com.simiacryptus.mindseye.lang.CoreSettings;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.layers.CheckpointLayer;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefStream;
@@ -42,6 +43,8 @@ public final class InnerNode extends LazyResult {
   @Nullable
   private volatile Layer layer;
   private boolean parallel = true;
+  private boolean checkpoint = false;
+  private volatile long layerVersion = 0;
 
   /**
    * Instantiates a new Inner node.
@@ -97,11 +100,21 @@ public final class InnerNode extends LazyResult {
       if (null != this.layer)
         this.layer.freeRef();
       this.layer = newLayer;
+      layerVersion = DAGNetwork.nextTopologyVersion();
     } else {
       newLayer.freeRef();
     }
   }
 
+  /**
+   * Gets the topology version issued when this node was last assigned a layer.
+   *
+   * @return the layer version
+   */
+  long getLayerVersion() {
+    return layerVersion;
+  }
+
   /**
    * Is parallel boolean.
    *
@@ -120,6 +133,25 @@ public final class InnerNode extends LazyResult {
     this.parallel = parallel;
   }
 
+  /**
+   * Is checkpoint boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isCheckpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * Sets checkpoint. When set, the node's layer activations are discarded after the
+   * forward pass and recomputed from the node inputs during the backward pass.
+   *
+   * @param checkpoint the checkpoint
+   */
+  public void setCheckpoint(boolean checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
 
   public void _free() {
     if (null != layer) {
@@ -147,17 +179,36 @@ public final class InnerNode extends LazyResult {
       RefStream<DAGNode> stream = RefArrays.stream(RefUtil.addRef(inputNodes));
       if (!CoreSettings.INSTANCE().singleThreaded && parallel)
         stream = stream.parallel();
-      return innerLayer.eval(stream.map(node -> {
+      Result[] inputs = stream.map(node -> {
         try {
           assert node != null;
           return node.get(ctx.addRef(), innerLayer.addRef());
         } finally {
           node.freeRef();
         }
-      }).toArray(Result[]::new));
+      }).toArray(Result[]::new);
+      return eval(innerLayer.addRef(), inputs);
     } finally {
       ctx.freeRef();
       innerLayer.freeRef();
     }
   }
+
+  /**
+   * Evaluates the node's layer against already-computed inputs.
+   *
+   * @param innerLayer the inner layer
+   * @param inputs     the inputs
+   * @return the result
+   */
+  @Nullable
+  Result eval(@Nonnull final Layer innerLayer, @Nonnull final Result... inputs) {
+    try {
+      if (checkpoint)
+        return CheckpointLayer.evalCheckpoint(innerLayer.addRef(), inputs);
+      return innerLayer.eval(inputs);
+    } finally {
+      innerLayer.freeRef();
+    }
+  }
 }
@@ -28,7 +28,6 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -64,10 +63,8 @@ abstract class LazyResult extends ReferenceCountingBase implements DAGNode {
   @Nullable
   @Override
   public CountingResult get(@Nonnull final GraphEvaluationContext context, Layer consumer) {
-    Map<UUID, Long> expectedCounts = context.getExpectedCounts();
     try {
       assertAlive();
-      Long expectedCount = expectedCounts.get(id);
       CountingResult countingResult = context.get(id, prev -> {
         if (null != prev) return prev;
         else RefUtil.freeRef(prev);
@@ -91,14 +88,6 @@ abstract class LazyResult extends ReferenceCountingBase implements DAGNode {
           countingResult.freeRef();
           throw new IllegalStateException();
         }
-        if (null != expectedCount) {
-          if (references == expectedCount) {
-            //RefUtil.freeRef(calculated.remove(id));
-          } else if (references > expectedCount) {
-//            nnResult.freeRef();
-//            throw new IllegalStateException();
-          }
-        }
       } else {
         if (null != consumer) consumer.freeRef();
         if (null != accumulator) accumulator.freeRef();
@@ -24,6 +24,7 @@ import com.simiacryptus.mindseye.lang.DataSerializer;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.SerialPrecision;
 import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.CheckpointLayer;
 import com.simiacryptus.mindseye.layers.ValueLayer;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
@@ -119,6 +120,7 @@ public class PipelineNetwork extends DAGNetwork {
       if (null != head)
         head.freeRef();
       head = obj;
+      invalidateTopology();
     } else {
       if (null != obj)
         obj.freeRef();
@@ -308,6 +310,19 @@ public class PipelineNetwork extends DAGNetwork {
       RefUtil.freeRef(layers);
   }
 
+  /**
+   * Adds the layers as a single checkpointed segment after the current head.
+   * Activations internal to the segment are not retained for the backward pass;
+   * they are recomputed from the segment input when gradients are accumulated.
+   *
+   * @param layers the layers
+   * @return the inner node
+   */
+  @Nonnull
+  public InnerNode addCheckpoint(@Nonnull final Layer... layers) {
+    return add(new CheckpointLayer(build(1, layers)));
+  }
+
   /**
    * Const value dag node.
    *
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The AdaGrad strategy: each parameter's gradient is scaled by the inverse root of the sum of all
+ * its past squared gradients, so frequently updated parameters take progressively smaller steps.
+ */
+public class AdaGrad extends AdaptiveStrategyBase {
+
+  private double epsilon = 1e-8;
+  @Nullable
+  private double[] sum = null;
+
+  /**
+   * Gets epsilon.
+   *
+   * @return the epsilon
+   */
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  /**
+   * Sets epsilon.
+   *
+   * @param epsilon the epsilon
+   */
+  public void setEpsilon(double epsilon) {
+    this.epsilon = epsilon;
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  AdaGrad addRef() {
+    return (AdaGrad) super.addRef();
+  }
+
+  @Nonnull
+  @Override
+  protected String getDirectionType() {
+    return "AdaGrad";
+  }
+
+  @Override
+  protected void allocate(final int dimension) {
+    sum = new double[dimension];
+  }
+
+  @Override
+  protected void update(@Nonnull final double[] gradient, @Nullable final double[] weights, @Nonnull final double[] direction) {
+    assert sum != null;
+    for (int i = 0; i < gradient.length; i++) {
+      final double g = gradient[i];
+      sum[i] += g * g;
+      direction[i] = -g / (Math.sqrt(sum[i]) + epsilon);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The Adam strategy: the gradient is smoothed by an exponential moving average, and each
+ * parameter is scaled by the inverse root of a moving average of its squared gradient, with both
+ * averages bias-corrected for their zero initialization.
+ */
+public class Adam extends AdaptiveStrategyBase {
+
+  private double beta1 = 0.9;
+  private double beta2 = 0.999;
+  private double epsilon = 1e-8;
+  @Nullable
+  private double[] m = null;
+  @Nullable
+  private double[] v = null;
+  private long steps = 0;
+
+  /**
+   * Gets beta 1.
+   *
+   * @return the beta 1
+   */
+  public double getBeta1() {
+    return beta1;
+  }
+
+  /**
+   * Sets the decay rate of the first moment average.
+   *
+   * @param beta1 the beta 1
+   */
+  public void setBeta1(double beta1) {
+    this.beta1 = beta1;
+  }
+
+  /**
+   * Gets beta 2.
+   *
+   * @return the beta 2
+   */
+  public double getBeta2() {
+    return beta2;
+  }
+
+  /**
+   * Sets the decay rate of the second moment average.
+   *
+   * @param beta2 the beta 2
+   */
+  public void setBeta2(double beta2) {
+    this.beta2 = beta2;
+  }
+
+  /**
+   * Gets epsilon.
+   *
+   * @return the epsilon
+   */
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  /**
+   * Sets epsilon.
+   *
+   * @param epsilon the epsilon
+   */
+  public void setEpsilon(double epsilon) {
+    this.epsilon = epsilon;
+  }
+
+  /**
+   * Gets the number of updates since the statistics were last cleared.
+   *
+   * @return the steps
+   */
+  public long getSteps() {
+    return steps;
+  }
+
+  /**
+   * Gets a copy of the first moment average, or null if no update has been made.
+   *
+   * @return the double [ ]
+   */
+  @Nullable
+  public double[] getFirstMoment() {
+    return null == m ? null : m.clone();
+  }
+
+  /**
+   * Gets a copy of the second moment average, or null if no update has been made.
+   *
+   * @return the double [ ]
+   */
+  @Nullable
+  public double[] getSecondMoment() {
+    return null == v ? null : v.clone();
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  Adam addRef() {
+    return (Adam) super.addRef();
+  }
+
+  @Nonnull
+  @Override
+  protected String getDirectionType() {
+    return "Adam";
+  }
+
+  @Override
+  protected void allocate(final int dimension) {
+    m = new double[dimension];
+    v = new double[dimension];
+    steps = 0;
+  }
+
+  @Override
+  protected void update(@Nonnull final double[] gradient, @Nullable final double[] weights, @Nonnull final double[] direction) {
+    assert m != null && v != null;
+    steps++;
+    final double correction1 = 1 - Math.pow(beta1, steps);
+    final double correction2 = 1 - Math.pow(beta2, steps);
+    for (int i = 0; i < gradient.length; i++) {
+      final double g = gradient[i];
+      m[i] = beta1 * m[i] + (1 - beta1) * g;
+      v[i] = beta2 * v[i] + (1 - beta2) * g * g;
+      direction[i] = -(m[i] / correction1) / (Math.sqrt(v[i] / correction2) + epsilon);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Adam with decoupled weight decay: the decay term is added to the step direction directly,
+ * rather than to the gradient, so it is not rescaled by the second moment average. As the step
+ * size is chosen by the line search, the effective decay per step is the step size times the
+ * weight decay.
+ */
+public class AdamW extends Adam {
+
+  private double weightDecay = 1e-2;
+
+  /**
+   * Gets weight decay.
+   *
+   * @return the weight decay
+   */
+  public double getWeightDecay() {
+    return weightDecay;
+  }
+
+  /**
+   * Sets weight decay.
+   *
+   * @param weightDecay the weight decay
+   */
+  public void setWeightDecay(double weightDecay) {
+    this.weightDecay = weightDecay;
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  AdamW addRef() {
+    return (AdamW) super.addRef();
+  }
+
+  @Nonnull
+  @Override
+  protected String getDirectionType() {
+    return "AdamW";
+  }
+
+  @Override
+  protected boolean usesWeights() {
+    return true;
+  }
+
+  @Override
+  protected void update(@Nonnull final double[] gradient, @Nullable final double[] weights, @Nonnull final double[] direction) {
+    super.update(gradient, weights, direction);
+    assert weights != null;
+    for (int i = 0; i < direction.length; i++) {
+      direction[i] -= weightDecay * weights[i];
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.ParameterVector;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Base class for first-order strategies which rescale the gradient per parameter using running
+ * statistics of past gradients. The statistics are held in flat buffers laid out by a
+ * {@link ParameterVector} and updated in place on every call; the resulting direction is meant to
+ * be taken with a fixed step, e.g. by a {@link com.simiacryptus.mindseye.opt.line.StaticLearningRate},
+ * but works with any line search strategy.
+ * <p>
+ * The statistics are what make these strategies work on minibatches, so they are kept across
+ * {@link #reset()}, which trainers call on every reseed of the training sample. They are restarted
+ * only by {@link #clearState()} or when the parameter layout changes.
+ */
+public abstract class AdaptiveStrategyBase extends OrientationStrategyBase<SimpleLineSearchCursor> {
+
+  @Nullable
+  private ParameterVector layout = null;
+  @Nullable
+  private double[] gradient = null;
+  @Nullable
+  private double[] weights = null;
+  @Nullable
+  private double[] direction = null;
+
+  @Nonnull
+  @Override
+  public synchronized SimpleLineSearchCursor orient(@Nullable final Trainable subject, @Nonnull final PointSample measurement,
+                                                    @Nonnull final TrainingMonitor monitor) {
+    final ParameterVector layout = ParameterVector.of(this.layout, measurement.delta.addRef());
+    if (layout != this.layout) {
+      this.layout = layout;
+      gradient = layout.allocate();
+      direction = layout.allocate();
+      weights = usesWeights() ? layout.allocate() : null;
+      allocate(layout.getDimension());
+    }
+    assert gradient != null && direction != null;
+    layout.readDelta(measurement.delta.addRef(), gradient);
+    if (null != weights) layout.readWeights(measurement.weights.addRef(), weights);
+    update(gradient, weights, direction);
+    final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, measurement, layout.toDeltaSet(direction));
+    cursor.setDirectionType(getDirectionType());
+    return cursor;
+  }
+
+  /**
+   * Does nothing: trainers reset the orientation whenever the training sample is reseeded, and the
+   * running statistics must persist across samples.
+   */
+  @Override
+  public void reset() {
+  }
+
+  /**
+   * Discards the running statistics, restarting the strategy from its initial state.
+   */
+  public synchronized void clearState() {
+    if (null != layout) allocate(layout.getDimension());
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  AdaptiveStrategyBase addRef() {
+    return (AdaptiveStrategyBase) super.addRef();
+  }
+
+  /**
+   * Gets the direction type reported to the line search cursor.
+   *
+   * @return the direction type
+   */
+  @Nonnull
+  protected abstract String getDirectionType();
+
+  /**
+   * Whether {@link #update} needs the current weights.
+   *
+   * @return the boolean
+   */
+  protected boolean usesWeights() {
+    return false;
+  }
+
+  /**
+   * Allocates, or re-zeroes, the statistics buffers.
+   *
+   * @param dimension the dimension
+   */
+  protected abstract void allocate(int dimension);
+
+  /**
+   * Updates the statistics with a gradient and computes the step direction.
+   *
+   * @param gradient  the gradient
+   * @param weights   the weights, or null if not {@link #usesWeights()}
+   * @param direction the direction to write
+   */
+  protected abstract void update(@Nonnull double[] gradient, @Nullable double[] weights, @Nonnull double[] direction);
+}
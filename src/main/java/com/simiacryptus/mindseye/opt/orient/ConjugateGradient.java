@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.ParameterVector;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.simiacryptus.mindseye.lang.ParameterVector.dot;
+
+/**
+ * A nonlinear conjugate gradient orientation strategy. Only the previous gradient and direction are
+ * kept, in flat buffers laid out by a {@link ParameterVector}, so memory is linear in the number of
+ * parameters regardless of history. Each direction is the negative gradient plus beta times the
+ * previous direction, with beta given by the chosen {@link Formula} and clamped at zero.
+ * <p>
+ * The strategy restarts with steepest descent when the gradients lose orthogonality (Powell's
+ * criterion), every {@link #getRestartInterval()} iterations if set, and whenever the conjugate
+ * direction is not a descent direction. It relies on a reasonably accurate line search, such as the
+ * default {@link com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch}.
+ */
+public class ConjugateGradient extends OrientationStrategyBase<SimpleLineSearchCursor> {
+
+  @Nonnull
+  private Formula formula = Formula.PolakRibiere;
+  private int restartInterval = 0;
+  private double orthogonalityThreshold = 0.2;
+  @Nullable
+  private ParameterVector layout = null;
+  @Nullable
+  private double[] gradient = null;
+  @Nullable
+  private double[] previousGradient = null;
+  @Nullable
+  private double[] direction = null;
+  private boolean hasPrevious = false;
+  private int iterations = 0;
+
+  /**
+   * Gets formula.
+   *
+   * @return the formula
+   */
+  @Nonnull
+  public Formula getFormula() {
+    return formula;
+  }
+
+  /**
+   * Sets formula.
+   *
+   * @param formula the formula
+   */
+  public void setFormula(@Nonnull Formula formula) {
+    this.formula = formula;
+  }
+
+  /**
+   * Gets restart interval.
+   *
+   * @return the restart interval
+   */
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+  /**
+   * Sets the number of iterations between forced restarts; zero disables periodic restarts.
+   *
+   * @param restartInterval the restart interval
+   */
+  public void setRestartInterval(int restartInterval) {
+    this.restartInterval = restartInterval;
+  }
+
+  /**
+   * Gets orthogonality threshold.
+   *
+   * @return the orthogonality threshold
+   */
+  public double getOrthogonalityThreshold() {
+    return orthogonalityThreshold;
+  }
+
+  /**
+   * Sets the restart threshold on |g[k] . g[k-1]| / |g[k]|^2.
+   *
+   * @param orthogonalityThreshold the orthogonality threshold
+   */
+  public void setOrthogonalityThreshold(double orthogonalityThreshold) {
+    this.orthogonalityThreshold = orthogonalityThreshold;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized SimpleLineSearchCursor orient(@Nullable final Trainable subject, @Nonnull final PointSample measurement,
+                                                    @Nonnull final TrainingMonitor monitor) {
+    final ParameterVector layout = ParameterVector.of(this.layout, measurement.delta.addRef());
+    if (layout != this.layout) {
+      this.layout = layout;
+      gradient = layout.allocate();
+      previousGradient = layout.allocate();
+      direction = layout.allocate();
+      hasPrevious = false;
+    }
+    assert gradient != null && previousGradient != null && direction != null;
+    final double[] swap = previousGradient;
+    previousGradient = gradient;
+    gradient = swap;
+    layout.readDelta(measurement.delta.addRef(), gradient);
+    final double gg = dot(gradient, gradient);
+    final String type;
+    final double beta = hasPrevious ? beta(gg, monitor) : 0;
+    if (0 < beta) {
+      double descent = 0;
+      for (int i = 0; i < gradient.length; i++) {
+        direction[i] = beta * direction[i] - gradient[i];
+        descent += direction[i] * gradient[i];
+      }
+      if (descent < 0 && Double.isFinite(descent)) {
+        type = "CG";
+      } else {
+        monitor.log(RefString.format("Restarting CG: not a descent direction (%s)", descent));
+        steepest();
+        type = "GD";
+      }
+    } else {
+      steepest();
+      type = "GD";
+    }
+    hasPrevious = true;
+    iterations++;
+    final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, measurement, layout.toDeltaSet(direction));
+    cursor.setDirectionType(type);
+    return cursor;
+  }
+
+  @Override
+  public synchronized void reset() {
+    hasPrevious = false;
+    iterations = 0;
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ConjugateGradient addRef() {
+    return (ConjugateGradient) super.addRef();
+  }
+
+  private double beta(final double gg, @Nonnull final TrainingMonitor monitor) {
+    assert gradient != null && previousGradient != null && direction != null;
+    if (0 < restartInterval && 0 == iterations % restartInterval) {
+      return 0;
+    }
+    final double cross = dot(gradient, previousGradient);
+    if (Math.abs(cross) >= orthogonalityThreshold * gg) {
+      monitor.log(RefString.format("Restarting CG: gradient orthogonality lost (%s / %s)", cross, gg));
+      return 0;
+    }
+    final double beta;
+    switch (formula) {
+      case HestenesStiefel: {
+        // y = g[k] - g[k-1]; beta = g[k].y / d[k-1].y
+        double numerator = 0;
+        double denominator = 0;
+        for (int i = 0; i < gradient.length; i++) {
+          final double y = gradient[i] - previousGradient[i];
+          numerator += gradient[i] * y;
+          denominator += direction[i] * y;
+        }
+        beta = numerator / denominator;
+        break;
+      }
+      case PolakRibiere:
+      default: {
+        beta = (gg - cross) / dot(previousGradient, previousGradient);
+        break;
+      }
+    }
+    return Double.isFinite(beta) ? Math.max(0, beta) : 0;
+  }
+
+  private void steepest() {
+    assert gradient != null && direction != null;
+    for (int i = 0; i < gradient.length; i++) {
+      direction[i] = -gradient[i];
+    }
+  }
+
+  /**
+   * The formula for the conjugacy coefficient beta.
+   */
+  public enum Formula {
+    /**
+     * Polak-Ribiere: beta = g[k].(g[k] - g[k-1]) / g[k-1].g[k-1]
+     */
+    PolakRibiere,
+    /**
+     * Hestenes-Stiefel: beta = g[k].(g[k] - g[k-1]) / d[k-1].(g[k] - g[k-1])
+     */
+    HestenesStiefel
+  }
+}
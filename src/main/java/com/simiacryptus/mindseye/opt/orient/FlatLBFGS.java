@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.ParameterVector;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.simiacryptus.mindseye.lang.ParameterVector.axpy;
+import static com.simiacryptus.mindseye.lang.ParameterVector.dot;
+
+/**
+ * An LBFGS orientation strategy working on flat vectors. Rather than keeping full copies of the
+ * weights and gradients of past points, it keeps only the curvature pairs
+ * <code>s = w[k+1] - w[k]</code>, <code>y = g[k+1] - g[k]</code> and <code>rho = 1 / (y . s)</code>
+ * in a ring of preallocated arrays laid out by a {@link ParameterVector}, adds one pair per call,
+ * and runs the two-loop recursion in place over those arrays.
+ * <p>
+ * Pairs with non-positive curvature are skipped, and the history is discarded whenever the set or
+ * size of the parameter buffers changes or the resulting direction is not a descent direction.
+ */
+public class FlatLBFGS extends OrientationStrategyBase<SimpleLineSearchCursor> {
+
+  private int maxHistory = 30;
+  private int minHistory = 1;
+  @Nullable
+  private ParameterVector layout = null;
+  private int dimension = 0;
+  @Nullable
+  private double[][] s = null;
+  @Nullable
+  private double[][] y = null;
+  @Nullable
+  private double[] rho = null;
+  @Nullable
+  private double[] alpha = null;
+  @Nullable
+  private double[] weights = null;
+  @Nullable
+  private double[] gradient = null;
+  @Nullable
+  private double[] direction = null;
+  private boolean hasPrevious = false;
+  private int head = 0;
+  private int count = 0;
+
+  /**
+   * Gets max history.
+   *
+   * @return the max history
+   */
+  public int getMaxHistory() {
+    return maxHistory;
+  }
+
+  /**
+   * Sets the number of curvature pairs retained. Takes effect on the next reset, which discards
+   * the current history.
+   *
+   * @param maxHistory the max history
+   */
+  public void setMaxHistory(int maxHistory) {
+    if (maxHistory < 1) throw new IllegalArgumentException("maxHistory = " + maxHistory);
+    this.maxHistory = maxHistory;
+  }
+
+  /**
+   * Gets min history.
+   *
+   * @return the min history
+   */
+  public int getMinHistory() {
+    return minHistory;
+  }
+
+  /**
+   * Sets the number of curvature pairs required before quasi-newton directions are used; until
+   * then the strategy falls back to gradient descent.
+   *
+   * @param minHistory the min history
+   */
+  public void setMinHistory(int minHistory) {
+    this.minHistory = minHistory;
+  }
+
+  /**
+   * Gets the number of curvature pairs currently held.
+   *
+   * @return the history size
+   */
+  public int getHistorySize() {
+    return count;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized SimpleLineSearchCursor orient(@Nullable final Trainable subject, @Nonnull final PointSample measurement,
+                                                    @Nonnull final TrainingMonitor monitor) {
+    final ParameterVector layout = ParameterVector.of(this.layout, measurement.delta.addRef());
+    if (layout != this.layout) {
+      allocate(layout);
+    }
+    assert s != null && y != null && rho != null && weights != null && gradient != null && direction != null;
+    if (hasPrevious) {
+      // Form the new pair in the next ring slot from the previous point, before overwriting it
+      final double[] sk = s[head];
+      final double[] yk = y[head];
+      System.arraycopy(weights, 0, sk, 0, dimension);
+      System.arraycopy(gradient, 0, yk, 0, dimension);
+      layout.readWeights(measurement.weights.addRef(), weights);
+      layout.readDelta(measurement.delta.addRef(), gradient);
+      double sy = 0;
+      for (int i = 0; i < dimension; i++) {
+        sk[i] = weights[i] - sk[i];
+        yk[i] = gradient[i] - yk[i];
+        sy += sk[i] * yk[i];
+      }
+      if (sy > 0 && Double.isFinite(sy)) {
+        rho[head] = 1.0 / sy;
+        head = (head + 1) % s.length;
+        count = Math.min(count + 1, s.length);
+      } else {
+        // The slot held the oldest pair, which is now overwritten
+        if (count == s.length) count--;
+        monitor.log(RefString.format("Skipped curvature pair with s.y = %s", sy));
+      }
+    } else {
+      layout.readWeights(measurement.weights.addRef(), weights);
+      layout.readDelta(measurement.delta.addRef(), gradient);
+      hasPrevious = true;
+    }
+    final String type;
+    final boolean ready = 0 < count && count >= minHistory;
+    if (ready && twoLoop()) {
+      type = "LBFGS";
+    } else {
+      // Until enough pairs are collected, fall back to the gradient but keep the history
+      if (ready) {
+        monitor.log(RefString.format("Rejected LBFGS direction; clearing %s pairs", count));
+        count = 0;
+        head = 0;
+      }
+      for (int i = 0; i < dimension; i++) {
+        direction[i] = -gradient[i];
+      }
+      type = "GD";
+    }
+    final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, measurement, layout.toDeltaSet(direction));
+    cursor.setDirectionType(type);
+    return cursor;
+  }
+
+  @Override
+  public synchronized void reset() {
+    if (null != s && s.length != maxHistory) {
+      allocateHistory();
+    }
+    hasPrevious = false;
+    head = 0;
+    count = 0;
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  FlatLBFGS addRef() {
+    return (FlatLBFGS) super.addRef();
+  }
+
+  private boolean twoLoop() {
+    assert s != null && y != null && rho != null && alpha != null && gradient != null && direction != null;
+    final int size = s.length;
+    System.arraycopy(gradient, 0, direction, 0, dimension);
+    for (int j = 0; j < count; j++) {
+      final int k = (head - 1 - j + size) % size;
+      final double a = rho[k] * dot(s[k], direction);
+      alpha[k] = a;
+      axpy(-a, y[k], direction);
+    }
+    final int newest = (head - 1 + size) % size;
+    final double yy = dot(y[newest], y[newest]);
+    final double gamma = 1.0 / (rho[newest] * yy);
+    if (!Double.isFinite(gamma) || gamma <= 0) return false;
+    ParameterVector.scale(gamma, direction);
+    for (int j = count - 1; j >= 0; j--) {
+      final int k = (head - 1 - j + size) % size;
+      final double b = rho[k] * dot(y[k], direction);
+      axpy(alpha[k] - b, s[k], direction);
+    }
+    double descent = 0;
+    for (int i = 0; i < dimension; i++) {
+      direction[i] = -direction[i];
+      descent += direction[i] * gradient[i];
+    }
+    return descent < 0 && Double.isFinite(descent);
+  }
+
+  private void allocate(@Nonnull final ParameterVector layout) {
+    this.layout = layout;
+    this.dimension = layout.getDimension();
+    allocateHistory();
+    this.weights = layout.allocate();
+    this.gradient = layout.allocate();
+    this.direction = layout.allocate();
+    reset();
+  }
+
+  private void allocateHistory() {
+    this.s = new double[maxHistory][dimension];
+    this.y = new double[maxHistory][dimension];
+    this.rho = new double[maxHistory];
+    this.alpha = new double[maxHistory];
+  }
+}
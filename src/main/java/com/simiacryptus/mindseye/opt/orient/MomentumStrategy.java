@@ -29,7 +29,6 @@ import com.simiacryptus.mindseye.opt.line.LineSearchCursor;
 import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefMap;
-import com.simiacryptus.util.ArrayUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -102,7 +101,13 @@ public class MomentumStrategy extends OrientationStrategyBase<SimpleLineSearchCu
       Delta<UUID> temp_05_0005 = newDelta.get(layer, delta.target);
       assert prevBuffer != null;
       assert temp_05_0005 != null;
-      temp_05_0005.addInPlace(ArrayUtil.add(ArrayUtil.multiply(prevBuffer.getDelta(), carryOver), delta.getDelta()));
+      final double[] prev = prevBuffer.getDelta();
+      final double[] next = delta.getDelta();
+      final double[] out = temp_05_0005.getDelta();
+      assert prev != null && next != null && out != null;
+      for (int i = 0; i < out.length; i++) {
+        out[i] = prev[i] * carryOver + next[i];
+      }
       temp_05_0005.freeRef();
       prevBuffer.freeRef();
       delta.freeRef();
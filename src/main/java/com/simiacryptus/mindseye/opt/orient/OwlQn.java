@@ -22,6 +22,7 @@ package com.simiacryptus.mindseye.opt.orient;
 import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.Delta;
 import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.DoubleBuffer;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.PointSample;
 import com.simiacryptus.mindseye.network.DAGNetwork;
@@ -138,9 +139,7 @@ public class OwlQn extends OrientationStrategyBase<LineSearchCursor> {
           assert subject != null;
           DAGNetwork layer = (DAGNetwork) subject.getLayer();
           if (null == layer) return null;
-          RefMap<UUID, Layer> layersById = layer.getLayersById();
-          Layer id_layer = layersById.get(id);
-          layersById.freeRef();
+          Layer id_layer = layer.getLayerById(id);
           layer.freeRef();
           return id_layer;
         }, subject == null ? null : subject.addRef())).collect(RefCollectors.toList());
@@ -213,6 +212,7 @@ public class OwlQn extends OrientationStrategyBase<LineSearchCursor> {
               buffer.target[i] = newValue;
             }
           }
+          DoubleBuffer.incrementVersion(buffer.target);
           buffer.freeRef();
         }, currentDirection.addRef()));
         temp_29_0008.freeRef();
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The RMSProp strategy: each parameter's gradient is scaled by the inverse root of a moving
+ * average of its squared gradient.
+ */
+public class RMSProp extends AdaptiveStrategyBase {
+
+  private double decay = 0.9;
+  private double epsilon = 1e-8;
+  @Nullable
+  private double[] v = null;
+
+  /**
+   * Gets decay.
+   *
+   * @return the decay
+   */
+  public double getDecay() {
+    return decay;
+  }
+
+  /**
+   * Sets the decay rate of the squared gradient average.
+   *
+   * @param decay the decay
+   */
+  public void setDecay(double decay) {
+    this.decay = decay;
+  }
+
+  /**
+   * Gets epsilon.
+   *
+   * @return the epsilon
+   */
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  /**
+   * Sets epsilon.
+   *
+   * @param epsilon the epsilon
+   */
+  public void setEpsilon(double epsilon) {
+    this.epsilon = epsilon;
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  RMSProp addRef() {
+    return (RMSProp) super.addRef();
+  }
+
+  @Nonnull
+  @Override
+  protected String getDirectionType() {
+    return "RMSProp";
+  }
+
+  @Override
+  protected void allocate(final int dimension) {
+    v = new double[dimension];
+  }
+
+  @Override
+  protected void update(@Nonnull final double[] gradient, @Nullable final double[] weights, @Nonnull final double[] direction) {
+    assert v != null;
+    for (int i = 0; i < gradient.length; i++) {
+      final double g = gradient[i];
+      v[i] = decay * v[i] + (1 - decay) * g * g;
+      direction[i] = -g / (Math.sqrt(v[i]) + epsilon);
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent single-item inference requests against a layer into batches.
+ * A background thread collects requests until either the maximum batch size is reached
+ * or the oldest pending request has waited for the maximum latency, then evaluates the
+ * whole batch with one {@link Layer#infer} call and completes each caller's future.
+ * Requests whose input shapes differ are evaluated in separate batches.
+ */
+public class MicroBatcher extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(MicroBatcher.class);
+
+  @Nonnull
+  private final Layer layer;
+  private final int maxBatchSize;
+  private final long maxLatencyNanos;
+  private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  @Nonnull
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * Instantiates a new Micro batcher.
+   *
+   * @param layer        the layer
+   * @param maxBatchSize the max batch size
+   * @param maxLatency   the max latency
+   * @param unit         the unit
+   */
+  public MicroBatcher(@Nonnull final Layer layer, final int maxBatchSize, final long maxLatency, @Nonnull final TimeUnit unit) {
+    if (maxBatchSize < 1) {
+      layer.freeRef();
+      throw new IllegalArgumentException("maxBatchSize = " + maxBatchSize);
+    }
+    this.layer = layer;
+    this.maxBatchSize = maxBatchSize;
+    this.maxLatencyNanos = unit.toNanos(maxLatency);
+    this.thread = new Thread(this::run, getClass().getSimpleName() + "-" + layer.getName());
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Gets max batch size.
+   *
+   * @return the max batch size
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Gets pending request count.
+   *
+   * @return the pending count
+   */
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * Submits one item for evaluation. Each argument is one input column of the layer.
+   *
+   * @param inputs the inputs
+   * @return the future output
+   */
+  @Nonnull
+  public CompletableFuture<Tensor> submit(@Nonnull final Tensor... inputs) {
+    Request request = new Request(inputs);
+    // Checked under the same lock as the shutdown, so no request is queued after the final drain
+    synchronized (queue) {
+      if (!running) {
+        RefUtil.freeRef(inputs);
+        throw new IllegalStateException("Batcher is closed");
+      }
+      queue.add(request);
+    }
+    return request.future;
+  }
+
+  /**
+   * Evaluates one item, blocking until its batch has been evaluated.
+   *
+   * @param inputs the inputs
+   * @return the tensor
+   */
+  @Nonnull
+  public Tensor apply(@Nonnull final Tensor... inputs) {
+    try {
+      return submit(inputs).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * As tensor function unary operator.
+   *
+   * @return the unary operator
+   */
+  @Nonnull
+  public UnaryOperator<Tensor> asTensorFunction() {
+    return input -> apply(input);
+  }
+
+  public void _free() {
+    synchronized (queue) {
+      running = false;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Request> pending = new ArrayList<>();
+    queue.drainTo(pending);
+    for (Request request : pending) {
+      request.fail(new IllegalStateException("Batcher is closed"));
+    }
+    layer.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  MicroBatcher addRef() {
+    return (MicroBatcher) super.addRef();
+  }
+
+  private void run() {
+    final List<Request> batch = new ArrayList<>();
+    while (running) {
+      try {
+        Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (null == first) continue;
+        batch.add(first);
+        final long deadline = first.submitted + maxLatencyNanos;
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        while (batch.size() < maxBatchSize) {
+          long wait = deadline - System.nanoTime();
+          if (wait <= 0) break;
+          Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+          if (null == next) break;
+          batch.add(next);
+          queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+      } catch (InterruptedException e) {
+        if (running) continue;
+      }
+      if (!batch.isEmpty()) {
+        for (List<Request> group : groupByShape(batch)) {
+          evalBatch(group);
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  private void evalBatch(@Nonnull final List<Request> batch) {
+    try {
+      final int columns = batch.get(0).inputs.length;
+      final TensorList[] inputs = new TensorList[columns];
+      for (int column = 0; column < columns; column++) {
+        final Tensor[] items = new Tensor[batch.size()];
+        for (int i = 0; i < items.length; i++) {
+          items[i] = batch.get(i).inputs[column].addRef();
+        }
+        inputs[column] = new TensorArray(items);
+      }
+      final TensorList output = layer.infer(inputs);
+      try {
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).complete(output.get(i));
+        }
+      } finally {
+        output.freeRef();
+      }
+    } catch (Throwable e) {
+      log.debug("Batch evaluation failed", e);
+      for (Request request : batch) {
+        request.fail(e);
+      }
+    }
+  }
+
+  @Nonnull
+  private static Collection<List<Request>> groupByShape(@Nonnull final List<Request> batch) {
+    final Map<String, List<Request>> groups = new LinkedHashMap<>();
+    for (Request request : batch) {
+      groups.computeIfAbsent(request.shapeKey(), k -> new ArrayList<>()).add(request);
+    }
+    return groups.values();
+  }
+
+  private static final class Request {
+    @Nonnull
+    private final Tensor[] inputs;
+    private final CompletableFuture<Tensor> future = new CompletableFuture<>();
+    private final long submitted = System.nanoTime();
+
+    private Request(@Nonnull final Tensor[] inputs) {
+      this.inputs = inputs;
+    }
+
+    @Nonnull
+    private String shapeKey() {
+      final StringBuilder key = new StringBuilder();
+      for (Tensor input : inputs) {
+        key.append(Arrays.toString(input.getDimensions()));
+      }
+      return key.toString();
+    }
+
+    private void complete(@Nonnull final Tensor output) {
+      if (future.complete(output)) {
+        RefUtil.freeRef(inputs);
+      } else {
+        output.freeRef();
+      }
+    }
+
+    private void fail(@Nonnull final Throwable e) {
+      if (future.completeExceptionally(e)) {
+        RefUtil.freeRef(inputs);
+      }
+    }
+  }
+}
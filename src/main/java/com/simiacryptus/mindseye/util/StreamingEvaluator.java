@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIteratorBase;
+import com.simiacryptus.ref.wrappers.RefSpliterators;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefStreamSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maps a stream of tensors through a layer in batches, with the input, evaluation and output
+ * stages running concurrently. A producer thread pulls items from the source stream and groups
+ * them into batches; each batch is evaluated with {@link Layer#infer} on a pool of maxInFlight
+ * threads; the returned stream yields the outputs in input order. A bounded queue of in-flight
+ * batches provides back-pressure between the stages, and closing the returned stream stops the
+ * producer from pulling further items.
+ */
+public final class StreamingEvaluator {
+
+  private StreamingEvaluator() {
+  }
+
+  /**
+   * Map ref stream.
+   *
+   * @param layer       the layer
+   * @param values      the values
+   * @param batchSize   the batch size
+   * @param maxInFlight the max number of batches being evaluated or awaiting consumption
+   * @return the ref stream
+   */
+  @Nonnull
+  public static RefStream<Tensor> map(@Nonnull final Layer layer, @Nonnull final RefStream<Tensor> values,
+                                      final int batchSize, final int maxInFlight) {
+    if (batchSize < 1 || maxInFlight < 1) {
+      layer.freeRef();
+      values.freeRef();
+      throw new IllegalArgumentException(batchSize + " / " + maxInFlight);
+    }
+    final BlockingQueue<CompletableFuture<TensorList>> queue = new ArrayBlockingQueue<>(maxInFlight);
+    final CompletableFuture<TensorList> end = CompletableFuture.completedFuture(null);
+    final AtomicBoolean closed = new AtomicBoolean(false);
+    // The producer blocks once maxInFlight batches are queued, so at most one more is ever submitted
+    final ExecutorService executor = Executors.newFixedThreadPool(maxInFlight,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(StreamingEvaluator.class.getSimpleName() + "-%d").build());
+    final Thread producer = new Thread(() -> {
+      final Iterator<Tensor> iterator = values.iterator();
+      try {
+        final List<Tensor> buffer = new ArrayList<>(batchSize);
+        while (!closed.get() && iterator.hasNext()) {
+          buffer.add(iterator.next());
+          if (buffer.size() >= batchSize) {
+            enqueue(queue, submit(layer.addRef(), buffer, executor), closed);
+            buffer.clear();
+          }
+        }
+        if (closed.get()) {
+          RefUtil.freeRef(buffer.toArray(new Tensor[]{}));
+        } else if (!buffer.isEmpty()) {
+          enqueue(queue, submit(layer.addRef(), buffer, executor), closed);
+        }
+      } catch (Throwable e) {
+        CompletableFuture<TensorList> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        enqueue(queue, failed, closed);
+      } finally {
+        RefUtil.freeRef(iterator);
+        layer.freeRef();
+        executor.shutdown();
+        enqueue(queue, end, closed);
+        if (closed.get()) drain(queue);
+      }
+    }, StreamingEvaluator.class.getSimpleName());
+    producer.setDaemon(true);
+    producer.start();
+    return RefStreamSupport.stream(RefSpliterators.spliteratorUnknownSize(new RefIteratorBase<Tensor>() {
+      @Nullable
+      private TensorList current = null;
+      private int index = 0;
+      private boolean finished = false;
+
+      @Override
+      public boolean hasNext() {
+        while (!finished && (null == current || index >= current.length())) {
+          if (null != current) {
+            current.freeRef();
+            current = null;
+          }
+          final CompletableFuture<TensorList> future;
+          try {
+            future = queue.take();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+          }
+          if (future == end) {
+            finished = true;
+          } else {
+            try {
+              current = future.join();
+            } catch (CompletionException e) {
+              finished = true;
+              final Throwable cause = e.getCause();
+              if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+              throw new RuntimeException(cause);
+            }
+            index = 0;
+          }
+        }
+        return !finished;
+      }
+
+      @Nonnull
+      @Override
+      public Tensor next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        assert current != null;
+        return current.get(index++);
+      }
+
+      public void _free() {
+        closed.set(true);
+        if (null != current) {
+          current.freeRef();
+          current = null;
+        }
+        drain(queue);
+        super._free();
+      }
+    }, Spliterator.ORDERED), false);
+  }
+
+  @Nonnull
+  private static CompletableFuture<TensorList> submit(@Nonnull final Layer layer, @Nonnull final List<Tensor> batch,
+                                                      @Nonnull final Executor executor) {
+    final TensorArray input = new TensorArray(batch.toArray(new Tensor[]{}));
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return layer.infer(input);
+      } finally {
+        layer.freeRef();
+      }
+    }, executor);
+  }
+
+  private static void enqueue(@Nonnull final BlockingQueue<CompletableFuture<TensorList>> queue,
+                              @Nonnull final CompletableFuture<TensorList> future, @Nonnull final AtomicBoolean closed) {
+    try {
+      while (!closed.get()) {
+        if (queue.offer(future, 100, TimeUnit.MILLISECONDS)) return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    future.thenAccept(result -> RefUtil.freeRef(result));
+  }
+
+  private static void drain(@Nonnull final BlockingQueue<CompletableFuture<TensorList>> queue) {
+    final List<CompletableFuture<TensorList>> pending = new ArrayList<>();
+    queue.drainTo(pending);
+    for (CompletableFuture<TensorList> future : pending) {
+      future.thenAccept(result -> RefUtil.freeRef(result));
+    }
+  }
+}
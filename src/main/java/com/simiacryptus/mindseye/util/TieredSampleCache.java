@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.SerialPrecision;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * A sample store with explicit byte budgets, for training data which is expensive to generate.
+ * Samples are held in up to three tiers:
+ * <ol>
+ *   <li>hot: decoded tensors, ready for use;</li>
+ *   <li>compressed: tensors encoded in heap with a {@link SerialPrecision};</li>
+ *   <li>disk: compressed encodings written to a spill directory, if one is set.</li>
+ * </ol>
+ * Each tier is kept within its budget by moving its least recently used entries to the next tier;
+ * entries evicted from the last tier are dropped and regenerated on the next access. Fixed samples,
+ * which cannot be regenerated, are never dropped; the last tier exceeds its budget to hold them
+ * instead. Accessed entries are promoted back to the hot tier, keeping their tensor ids. Note that
+ * entries which have passed through the compressed tier carry the precision loss of its encoding.
+ */
+public class TieredSampleCache extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(TieredSampleCache.class);
+
+  private final long hotBytes;
+  private final long compressedBytes;
+  private final long diskBytes;
+  @Nonnull
+  private final SerialPrecision precision;
+  @Nullable
+  private final File directory;
+  private final List<Supplier<Tensor[]>> generators = new ArrayList<>();
+  private final Set<Integer> fixed = new HashSet<>();
+  private final LinkedHashMap<Integer, Tensor[]> hot = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<Integer, byte[]> compressed = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<Integer, File> disk = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Integer, CompletableFuture<Boolean>> loading = new HashMap<>();
+  private long hotUsed = 0;
+  private long compressedUsed = 0;
+  private long diskUsed = 0;
+  private long hotHits = 0;
+  private long compressedHits = 0;
+  private long diskHits = 0;
+  private long misses = 0;
+
+  /**
+   * Instantiates a new Tiered sample cache without a disk tier.
+   *
+   * @param hotBytes        the hot tier budget
+   * @param compressedBytes the compressed tier budget
+   * @param precision       the precision of the compressed tier
+   */
+  public TieredSampleCache(final long hotBytes, final long compressedBytes, @Nonnull final SerialPrecision precision) {
+    this(hotBytes, compressedBytes, precision, null, 0);
+  }
+
+  /**
+   * Instantiates a new Tiered sample cache.
+   *
+   * @param hotBytes        the hot tier budget
+   * @param compressedBytes the compressed tier budget
+   * @param precision       the precision of the compressed and disk tiers
+   * @param directory       the spill directory, or null to disable the disk tier
+   * @param diskBytes       the disk tier budget
+   */
+  public TieredSampleCache(final long hotBytes, final long compressedBytes, @Nonnull final SerialPrecision precision,
+                           @Nullable final File directory, final long diskBytes) {
+    this.hotBytes = hotBytes;
+    this.compressedBytes = compressedBytes;
+    this.precision = precision;
+    this.directory = directory;
+    this.diskBytes = diskBytes;
+  }
+
+  /**
+   * Gets hot hits.
+   *
+   * @return the hot hits
+   */
+  public long getHotHits() {
+    return hotHits;
+  }
+
+  /**
+   * Gets compressed hits.
+   *
+   * @return the compressed hits
+   */
+  public long getCompressedHits() {
+    return compressedHits;
+  }
+
+  /**
+   * Gets disk hits.
+   *
+   * @return the disk hits
+   */
+  public long getDiskHits() {
+    return diskHits;
+  }
+
+  /**
+   * Gets the number of accesses which had to regenerate the sample.
+   *
+   * @return the misses
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Registers sample generators with the cache, returning suppliers which serve each sample
+   * through the cache tiers. The returned list can be passed to a
+   * {@link com.simiacryptus.mindseye.eval.SampledArrayTrainable}.
+   *
+   * @param samples the sample generators
+   * @return the cached suppliers
+   */
+  @Nonnull
+  public RefList<RefSupplier<Tensor[]>> wrap(@Nonnull final RefList<? extends Supplier<Tensor[]>> samples) {
+    final RefList<RefSupplier<Tensor[]>> suppliers = new RefArrayList<>(samples.size());
+    synchronized (this) {
+      samples.forEach(sample -> {
+        final int slot = generators.size();
+        generators.add(sample);
+        suppliers.add(RefUtil.wrapInterface((RefSupplier<Tensor[]>) () -> get(slot), this.addRef()));
+      });
+    }
+    samples.freeRef();
+    return suppliers;
+  }
+
+  /**
+   * Registers fixed samples with the cache. The samples are moved into the cache tiers and
+   * cannot be regenerated, so they are held in the last tier even beyond its budget.
+   *
+   * @param samples the samples
+   * @return the cached suppliers
+   */
+  @Nonnull
+  public synchronized RefList<RefSupplier<Tensor[]>> wrap(@Nonnull final Tensor[][] samples) {
+    final RefList<RefSupplier<Tensor[]>> suppliers = new RefArrayList<>(samples.length);
+    for (Tensor[] sample : samples) {
+      final int slot = generators.size();
+      generators.add(() -> {
+        throw new IllegalStateException("Sample " + slot + " was evicted from all tiers");
+      });
+      fixed.add(slot);
+      put(slot, sample);
+      suppliers.add(RefUtil.wrapInterface((RefSupplier<Tensor[]>) () -> get(slot), this.addRef()));
+    }
+    return suppliers;
+  }
+
+  /**
+   * Gets a sample, promoting it to the hot tier. A missing sample is regenerated outside the lock,
+   * so other slots stay available meanwhile; concurrent requests for the same slot wait for that
+   * one regeneration rather than starting their own.
+   *
+   * @param slot the slot
+   * @return the tensor [ ]
+   */
+  @Nullable
+  public Tensor[] get(final int slot) {
+    final CompletableFuture<Boolean> pending;
+    final Supplier<Tensor[]> generator;
+    synchronized (this) {
+      assertAlive();
+      final Tensor[] cached = lookup(slot);
+      if (null != cached) return cached;
+      final CompletableFuture<Boolean> inFlight = loading.get(slot);
+      if (null != inFlight) {
+        pending = inFlight;
+        generator = null;
+      } else {
+        misses++;
+        pending = new CompletableFuture<>();
+        loading.put(slot, pending);
+        generator = generators.get(slot);
+      }
+    }
+    if (null == generator) {
+      try {
+        return pending.join() ? get(slot) : null;
+      } catch (CompletionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new RuntimeException(cause);
+      }
+    }
+    final Tensor[] sample;
+    try {
+      sample = generator.get();
+    } catch (Throwable e) {
+      synchronized (this) {
+        loading.remove(slot);
+      }
+      pending.completeExceptionally(e);
+      throw e;
+    }
+    synchronized (this) {
+      loading.remove(slot);
+      if (null != sample && !isFreed()) put(slot, RefUtil.addRef(sample));
+    }
+    pending.complete(null != sample);
+    return sample;
+  }
+
+  /**
+   * Clears all tiers.
+   */
+  public synchronized void clear() {
+    hot.values().forEach(tensors -> RefUtil.freeRef(tensors));
+    hot.clear();
+    compressed.clear();
+    disk.values().forEach(file -> file.delete());
+    disk.clear();
+    hotUsed = 0;
+    compressedUsed = 0;
+    diskUsed = 0;
+  }
+
+  public void _free() {
+    clear();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TieredSampleCache addRef() {
+    return (TieredSampleCache) super.addRef();
+  }
+
+  /**
+   * Finds a sample in the tiers, promoting it to the hot tier, or returns null if it has been
+   * dropped from all of them.
+   */
+  @Nullable
+  private Tensor[] lookup(final int slot) {
+    final Tensor[] cached = hot.get(slot);
+    if (null != cached) {
+      hotHits++;
+      return RefUtil.addRef(cached);
+    }
+    byte[] encoded = compressed.remove(slot);
+    if (null != encoded) {
+      compressedHits++;
+      compressedUsed -= encoded.length;
+    } else {
+      final File file = disk.remove(slot);
+      if (null != file) {
+        diskUsed -= file.length();
+        try {
+          encoded = Files.readAllBytes(file.toPath());
+          diskHits++;
+        } catch (IOException e) {
+          log.warn("Error reading spilled sample " + file, e);
+        } finally {
+          file.delete();
+        }
+      }
+    }
+    if (null == encoded) return null;
+    final Tensor[] sample = decode(encoded);
+    put(slot, RefUtil.addRef(sample));
+    return sample;
+  }
+
+  private void put(final int slot, @Nonnull final Tensor[] sample) {
+    final Tensor[] previous = hot.put(slot, sample);
+    if (null != previous) {
+      hotUsed -= sizeOf(previous);
+      RefUtil.freeRef(previous);
+    }
+    hotUsed += sizeOf(sample);
+    evict();
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<Integer, Tensor[]>> hotIterator = hot.entrySet().iterator();
+    while (hotUsed > hotBytes && hotIterator.hasNext()) {
+      final Map.Entry<Integer, Tensor[]> entry = hotIterator.next();
+      hotIterator.remove();
+      final Tensor[] tensors = entry.getValue();
+      hotUsed -= sizeOf(tensors);
+      final byte[] encoded = encode(tensors);
+      compressed.put(entry.getKey(), encoded);
+      compressedUsed += encoded.length;
+    }
+    final Iterator<Map.Entry<Integer, byte[]>> compressedIterator = compressed.entrySet().iterator();
+    while (compressedUsed > compressedBytes && compressedIterator.hasNext()) {
+      final Map.Entry<Integer, byte[]> entry = compressedIterator.next();
+      final byte[] encoded = entry.getValue();
+      if (null != directory) {
+        try {
+          Files.createDirectories(directory.toPath());
+          final File file = File.createTempFile("sample", ".bin", directory);
+          file.deleteOnExit();
+          Files.write(file.toPath(), encoded);
+          disk.put(entry.getKey(), file);
+          diskUsed += encoded.length;
+        } catch (IOException e) {
+          log.warn("Error spilling sample", e);
+          if (fixed.contains(entry.getKey())) continue;
+        }
+      } else if (fixed.contains(entry.getKey())) {
+        continue;
+      }
+      compressedIterator.remove();
+      compressedUsed -= encoded.length;
+    }
+    final Iterator<Map.Entry<Integer, File>> diskIterator = disk.entrySet().iterator();
+    while (diskUsed > diskBytes && diskIterator.hasNext()) {
+      final Map.Entry<Integer, File> entry = diskIterator.next();
+      if (fixed.contains(entry.getKey())) continue;
+      final File file = entry.getValue();
+      diskIterator.remove();
+      diskUsed -= file.length();
+      file.delete();
+    }
+  }
+
+  private static long sizeOf(@Nonnull final Tensor[] tensors) {
+    long size = 0;
+    for (Tensor tensor : tensors) {
+      if (null != tensor) size += (long) tensor.length() * 8;
+    }
+    return size;
+  }
+
+  @Nonnull
+  private byte[] encode(@Nonnull final Tensor[] tensors) {
+    try {
+      final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(buffer)) {
+        out.writeInt(precision.ordinal());
+        out.writeInt(tensors.length);
+        for (Tensor tensor : tensors) {
+          final UUID id = tensor.getId();
+          out.writeLong(id.getMostSignificantBits());
+          out.writeLong(id.getLeastSignificantBits());
+          final int[] dimensions = tensor.getDimensions();
+          out.writeInt(dimensions.length);
+          for (int dimension : dimensions) {
+            out.writeInt(dimension);
+          }
+          final byte[] bytes = precision.toBytes(tensor.getData());
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      }
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      RefUtil.freeRef(tensors);
+    }
+  }
+
+  @Nonnull
+  private static Tensor[] decode(@Nonnull final byte[] encoded) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+      final SerialPrecision precision = SerialPrecision.values()[in.readInt()];
+      final Tensor[] tensors = new Tensor[in.readInt()];
+      for (int i = 0; i < tensors.length; i++) {
+        final UUID id = new UUID(in.readLong(), in.readLong());
+        final int[] dimensions = new int[in.readInt()];
+        for (int j = 0; j < dimensions.length; j++) {
+          dimensions[j] = in.readInt();
+        }
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        tensors[i] = new Tensor(precision.fromBytes(bytes), dimensions);
+        tensors[i].setId(id);
+      }
+      return tensors;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.eval;
+
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+/**
+ * The type Batched trainable test.
+ */
+public class BatchedTrainableTest {
+
+  /**
+   * Measures the same data in uneven batches sequentially and with several workers, and checks
+   * that the value, gradient and item count agree.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testParallelMatchesSequential() {
+    final int size = 4;
+    final QuadraticTestLayer layer = new QuadraticTestLayer(size);
+    final UUID id = layer.getId();
+    final Tensor weights = layer.getWeights();
+    for (int i = 0; i < size; i++) {
+      weights.set(i, 0.5 * i - 0.25);
+    }
+    weights.freeRef();
+    final ArrayTrainable sequential = new ArrayTrainable(QuadraticTestLayer.data(23, size, 5), layer.addRef(), 3);
+    final ArrayTrainable parallel = new ArrayTrainable(QuadraticTestLayer.data(23, size, 5), layer, 3);
+    parallel.setParallelism(4);
+    final PointSample expected = sequential.measure(null);
+    final PointSample actual = parallel.measure(null);
+    try {
+      Assertions.assertEquals(expected.count, actual.count);
+      Assertions.assertEquals(expected.getMean(), actual.getMean(), 1e-9);
+      final Delta<UUID> expectedDelta = expected.delta.get(id);
+      final Delta<UUID> actualDelta = actual.delta.get(id);
+      Assertions.assertNotNull(expectedDelta);
+      Assertions.assertNotNull(actualDelta);
+      Assertions.assertArrayEquals(expectedDelta.getDelta(), actualDelta.getDelta(), 1e-9);
+      expectedDelta.freeRef();
+      actualDelta.freeRef();
+    } finally {
+      expected.freeRef();
+      actual.freeRef();
+      sequential.freeRef();
+      parallel.freeRef();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.eval;
+
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.SerialPrecision;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import com.simiacryptus.mindseye.opt.orient.GradientDescent;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.UUID;
+
+/**
+ * The type Socket trainable test.
+ */
+public class SocketTrainableTest {
+
+  /**
+   * Shards an uneven data set across two in-process workers and checks that the combined value and
+   * gradient match a single {@link BasicTrainable} over the whole data set, before and after the
+   * weights change.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testMatchesBasicTrainable() throws Exception {
+    final int size = 4;
+    final Tensor[][] data = QuadraticTestLayer.data(7, size, 3);
+    final QuadraticTestLayer layer = new QuadraticTestLayer(size);
+    final UUID id = layer.getId();
+    final Workers workers = new Workers(2);
+    final SocketTrainable socketTrainable = new SocketTrainable(layer.addRef(), workers.addresses);
+    final BasicTrainable basicTrainable = new BasicTrainable(layer.addRef());
+    try {
+      socketTrainable.setData(list(data));
+      basicTrainable.setData(list(data));
+      assertSameMeasurement(basicTrainable, socketTrainable, id);
+      final Tensor weights = layer.getWeights();
+      for (int i = 0; i < size; i++) {
+        weights.set(i, 0.25 * (i + 1));
+      }
+      weights.freeRef();
+      assertSameMeasurement(basicTrainable, socketTrainable, id);
+    } finally {
+      socketTrainable.freeRef();
+      basicTrainable.freeRef();
+      layer.freeRef();
+      RefUtil.freeRef(data);
+      workers.close();
+    }
+  }
+
+  /**
+   * Trains a small regression with compressed and with uncompressed gradients, and checks that
+   * compression reduces the bytes received per step without degrading the final loss.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testCompressedTrainingMatchesUncompressed() throws Exception {
+    final int size = 16;
+    final Tensor[][] data = QuadraticTestLayer.data(20, size, 11);
+    try {
+      final BasicTrainable reference = new BasicTrainable(new QuadraticTestLayer(size));
+      reference.setData(list(data));
+      final PointSample initial = reference.measure(null);
+      final double initialLoss = initial.getMean();
+      initial.freeRef();
+      reference.freeRef();
+      final double[] uncompressed = train(data, size, SerialPrecision.Double, 1.0);
+      final double[] compressed = train(data, size, SerialPrecision.Float, 0.5);
+      Assertions.assertTrue(compressed[1] < 0.6 * uncompressed[1],
+          RefString.format("%s bytes per step compressed, %s uncompressed", compressed[1], uncompressed[1]));
+      Assertions.assertTrue(uncompressed[0] < 0.05 * initialLoss, uncompressed[0] + " >= 0.05 * " + initialLoss);
+      Assertions.assertTrue(compressed[0] < uncompressed[0] + 0.01 * (initialLoss - uncompressed[0]),
+          RefString.format("Compressed loss %s, uncompressed loss %s, initial loss %s", compressed[0], uncompressed[0], initialLoss));
+    } finally {
+      RefUtil.freeRef(data);
+    }
+  }
+
+  /**
+   * Checks that a mask selecting an input column is rejected rather than having its gradients
+   * silently dropped, while a mask selecting nothing is accepted.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testRejectsInputMask() {
+    final SocketTrainable trainable = new SocketTrainable(new QuadraticTestLayer(2), new InetSocketAddress("localhost", 0));
+    try {
+      trainable.setMask(false);
+      Assertions.assertThrows(UnsupportedOperationException.class, () -> trainable.setMask(true));
+    } finally {
+      trainable.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static double[] train(@Nonnull final Tensor[][] data, final int size, @Nonnull final SerialPrecision precision,
+                                final double density) throws Exception {
+    final Workers workers = new Workers(2);
+    final SocketTrainable trainable = new SocketTrainable(new QuadraticTestLayer(size), workers.addresses);
+    try {
+      trainable.setData(list(data));
+      trainable.setGradientCompression(precision, density);
+      final IterativeTrainer trainer = new IterativeTrainer(trainable.addRef());
+      trainer.setOrientation(new GradientDescent());
+      trainer.setLineSearchFactory(name -> new StaticLearningRate(1.0 / size));
+      trainer.setMaxIterations(100);
+      final double loss = trainer.run();
+      trainer.freeRef();
+      return new double[]{loss, trainable.getLastGradientBytes()};
+    } finally {
+      trainable.freeRef();
+      workers.close();
+    }
+  }
+
+  private static void assertSameMeasurement(@Nonnull final Trainable expected, @Nonnull final Trainable actual, @Nonnull final UUID id) {
+    final PointSample expectedSample = expected.measure(null);
+    final PointSample actualSample = actual.measure(null);
+    try {
+      Assertions.assertEquals(expectedSample.getMean(), actualSample.getMean(), 1e-9);
+      final Delta<UUID> expectedDelta = expectedSample.delta.get(id);
+      final Delta<UUID> actualDelta = actualSample.delta.get(id);
+      Assertions.assertNotNull(expectedDelta);
+      Assertions.assertNotNull(actualDelta, "Gradient is not keyed by the local layer id");
+      Assertions.assertArrayEquals(expectedDelta.getDelta(), actualDelta.getDelta(), 1e-9);
+      expectedDelta.freeRef();
+      actualDelta.freeRef();
+    } finally {
+      expectedSample.freeRef();
+      actualSample.freeRef();
+    }
+  }
+
+  private static final class Workers {
+    @Nonnull
+    private final ServerSocket[] servers;
+    @Nonnull
+    private final Thread[] threads;
+    @Nonnull
+    private final InetSocketAddress[] addresses;
+
+    private Workers(final int count) throws IOException {
+      servers = new ServerSocket[count];
+      threads = new Thread[count];
+      addresses = new InetSocketAddress[count];
+      for (int i = 0; i < count; i++) {
+        final ServerSocket server = new ServerSocket(0);
+        servers[i] = server;
+        addresses[i] = new InetSocketAddress("localhost", server.getLocalPort());
+        threads[i] = new Thread(() -> SocketTrainable.Worker.serve(server));
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+    }
+
+    private void close() throws IOException, InterruptedException {
+      for (ServerSocket server : servers) {
+        server.close();
+      }
+      for (Thread thread : threads) {
+        thread.join(10000);
+      }
+    }
+  }
+
+  @Nonnull
+  private static RefList<Tensor[]> list(@Nonnull final Tensor[][] data) {
+    final RefList<Tensor[]> list = new RefArrayList<>(data.length);
+    for (Tensor[] row : data) {
+      list.add(RefUtil.addRef(row));
+    }
+    return list;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.lang;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The type Delta compressor test.
+ */
+public class DeltaCompressorTest {
+
+  /**
+   * Checks the quickselect threshold against a full sort.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testThreshold() {
+    final Random random = new Random(1);
+    for (int trial = 0; trial < 1000; trial++) {
+      final double[] values = new double[1 + random.nextInt(40)];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = random.nextInt(4) == 0 ? random.nextInt(3) : random.nextGaussian();
+      }
+      final int count = 1 + random.nextInt(values.length);
+      final double[] magnitudes = Arrays.stream(values).map(Math::abs).sorted().toArray();
+      Assertions.assertEquals(magnitudes[values.length - count], DeltaCompressor.threshold(values, count));
+    }
+  }
+
+  /**
+   * Checks that probes leave residuals untouched, and that a step's compression error is carried
+   * over once, when it is committed.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testResidualsCommittedOncePerStep() {
+    final DeltaCompressor<Integer> compressor = new DeltaCompressor<>(SerialPrecision.Double, 0.5, true);
+    final double[] gradient = {4, -1, 0.5, 3};
+    Assertions.assertArrayEquals(new double[]{4, 0, 0, 3}, DeltaCompressor.decode(compressor.encode(0, gradient)));
+    Assertions.assertNull(compressor.getResidual(0));
+    compressor.encodeProbe(0, new double[]{0, 10, 0, 0});
+    compressor.encode(0, gradient);
+    compressor.commitResiduals();
+    Assertions.assertArrayEquals(new double[]{0, -1, 0.5, 0}, compressor.getResidual(0));
+    compressor.encodeProbe(0, new double[]{0, 10, 0, 0});
+    Assertions.assertArrayEquals(new double[]{0, -1, 0.5, 0}, compressor.getResidual(0));
+    final double[] next = DeltaCompressor.decode(compressor.encode(0, new double[]{0, -1, 0, 0}));
+    Assertions.assertArrayEquals(new double[]{0, -2, 0.5, 0}, next);
+    compressor.commitResiduals();
+    Assertions.assertArrayEquals(new double[]{0, 0, 0, 0}, compressor.getResidual(0));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.lang;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The type Float tensor list test.
+ */
+public class FloatTensorListTest {
+
+  /**
+   * Checks that items are widened from single precision, and that repeated reads of one item carry
+   * the same id while different items do not.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testGet() {
+    final TensorArray source = new TensorArray(
+        new Tensor(new double[]{1.0 / 3, 2, 3}, 3),
+        new Tensor(new double[]{4, 5, 6.1}, 3));
+    final FloatTensorList list = new FloatTensorList(source);
+    final Tensor first = list.get(0);
+    final Tensor again = list.get(0);
+    final Tensor second = list.get(1);
+    Assertions.assertArrayEquals(new double[]{(float) (1.0 / 3), 2, 3}, first.getData());
+    Assertions.assertArrayEquals(new double[]{4, 5, (float) 6.1}, second.getData());
+    Assertions.assertEquals(first.getId(), again.getId());
+    Assertions.assertNotEquals(first.getId(), second.getId());
+    first.freeRef();
+    again.freeRef();
+    second.freeRef();
+    list.freeRef();
+  }
+}
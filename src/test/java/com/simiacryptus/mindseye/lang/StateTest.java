@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.lang;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The type State test.
+ */
+public class StateTest {
+
+  /**
+   * Checks that writes through each kind of tensor mutator are seen as changes to a saved state.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testTensorMutatorsAreDetected() {
+    final Tensor tensor = new Tensor(new double[]{1, 2, 3}, 3);
+    final State<String> state = new State<>("weights", tensor.getData());
+    try {
+      state.backup();
+      Assertions.assertFalse(state.isDifferent());
+      tensor.set(1, 5);
+      Assertions.assertTrue(state.isDifferent());
+      state.restore();
+      Assertions.assertFalse(state.isDifferent());
+      tensor.fill(7);
+      Assertions.assertTrue(state.isDifferent());
+      state.restore();
+      tensor.scaleInPlace(2);
+      Assertions.assertTrue(state.isDifferent());
+      state.restore();
+      tensor.add(0, 1);
+      Assertions.assertTrue(state.isDifferent());
+      state.restore();
+      Assertions.assertArrayEquals(new double[]{1, 2, 3}, tensor.getData());
+    } finally {
+      state.freeRef();
+      tensor.freeRef();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers;
+
+import com.simiacryptus.mindseye.eval.BasicTrainable;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The type Activation cache layer test.
+ */
+public class ActivationCacheLayerTest {
+
+  /**
+   * Measures a frozen prefix twice, and then again over copies of the samples, which have new
+   * tensor ids, and checks that every later measurement is served from the cache.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testHitOnSecondMeasure() {
+    final int items = 6;
+    final Tensor[][] data = QuadraticTestLayer.data(items, 3, 5);
+    final QuadraticTestLayer prefix = new QuadraticTestLayer(3);
+    prefix.freeze();
+    final ActivationCacheLayer cache = new ActivationCacheLayer(prefix, 1 << 20);
+    final BasicTrainable trainable = new BasicTrainable(cache.addRef());
+    try {
+      trainable.setData(list(data, false));
+      final double first = measure(trainable);
+      Assertions.assertEquals(0, cache.getHits());
+      Assertions.assertEquals(items, cache.getMisses());
+      final double second = measure(trainable);
+      Assertions.assertEquals(items, cache.getHits());
+      Assertions.assertEquals(items, cache.getMisses());
+      Assertions.assertEquals(first, second, 1e-12);
+      trainable.setData(list(data, true));
+      final double copied = measure(trainable);
+      Assertions.assertEquals(2 * items, cache.getHits());
+      Assertions.assertEquals(items, cache.getMisses());
+      Assertions.assertEquals(first, copied, 1e-12);
+    } finally {
+      trainable.freeRef();
+      cache.freeRef();
+      RefUtil.freeRef(data);
+    }
+  }
+
+  /**
+   * Checks that a prefix containing a stochastic layer is evaluated without caching.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testStochasticPrefixIsNotCached() {
+    final Tensor[][] data = QuadraticTestLayer.data(4, 3, 7);
+    final ActivationCacheLayer cache = new ActivationCacheLayer(new StochasticQuadraticLayer(3), 1 << 20);
+    final BasicTrainable trainable = new BasicTrainable(cache.addRef());
+    try {
+      trainable.setData(list(data, false));
+      measure(trainable);
+      measure(trainable);
+      Assertions.assertEquals(0, cache.getHits());
+      Assertions.assertEquals(0, cache.getMisses());
+    } finally {
+      trainable.freeRef();
+      cache.freeRef();
+      RefUtil.freeRef(data);
+    }
+  }
+
+  private static double measure(@Nonnull final BasicTrainable trainable) {
+    final PointSample sample = trainable.measure(null);
+    final double mean = sample.getMean();
+    sample.freeRef();
+    return mean;
+  }
+
+  @Nonnull
+  private static RefList<Tensor[]> list(@Nonnull final Tensor[][] data, final boolean copy) {
+    final RefList<Tensor[]> list = new RefArrayList<>(data.length);
+    for (Tensor[] row : data) {
+      final Tensor[] tensors = new Tensor[row.length];
+      for (int i = 0; i < row.length; i++) {
+        tensors[i] = copy ? row[i].copy() : row[i].addRef();
+      }
+      list.add(tensors);
+    }
+    return list;
+  }
+
+  @SuppressWarnings("serial")
+  private static class StochasticQuadraticLayer extends QuadraticTestLayer implements StochasticComponent {
+    private StochasticQuadraticLayer(final int size) {
+      super(size);
+      freeze();
+    }
+
+    @Override
+    public void shuffle(final long seed) {
+    }
+
+    @Override
+    public void clearNoise() {
+    }
+
+    @Nonnull
+    @Override
+    public StochasticQuadraticLayer addRef() {
+      return (StochasticQuadraticLayer) super.addRef();
+    }
+  }
+}
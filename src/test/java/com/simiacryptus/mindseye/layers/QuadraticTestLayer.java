@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A trainable quadratic bowl used as a test objective. For each input item x, the output is the
+ * single value <code>sum_i c_i (w_i - x_i)^2 / 2</code>, where w are the layer weights and c_i
+ * are fixed curvatures which grow with the index, so the problem is moderately ill-conditioned.
+ * Weight gradients are keyed by the layer id.
+ */
+@SuppressWarnings("serial")
+public class QuadraticTestLayer extends LayerBase {
+
+  @Nonnull
+  private final Tensor weights;
+  @Nonnull
+  private final double[] curvature;
+
+  /**
+   * Instantiates a new Quadratic test layer with zero weights.
+   *
+   * @param size the number of weights
+   */
+  public QuadraticTestLayer(final int size) {
+    super();
+    this.weights = new Tensor(size);
+    this.curvature = new double[size];
+    for (int i = 0; i < size; i++) {
+      curvature[i] = 1.0 + i;
+    }
+  }
+
+  /**
+   * Instantiates a new Quadratic test layer.
+   *
+   * @param json      the json
+   * @param resources the resources
+   */
+  protected QuadraticTestLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> resources) {
+    super(json);
+    this.weights = Tensor.fromJson(json.get("weights"), resources);
+    final JsonArray array = json.getAsJsonArray("curvature");
+    this.curvature = new double[array.size()];
+    for (int i = 0; i < curvature.length; i++) {
+      curvature[i] = array.get(i).getAsDouble();
+    }
+  }
+
+  /**
+   * Gets weights.
+   *
+   * @return the weights
+   */
+  @Nonnull
+  public Tensor getWeights() {
+    return weights.addRef();
+  }
+
+  /**
+   * From json quadratic test layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the quadratic test layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static QuadraticTestLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new QuadraticTestLayer(json, rs);
+  }
+
+  /**
+   * Builds a data set of items scattered around the point 1.
+   *
+   * @param items the items
+   * @param size  the size
+   * @param seed  the seed
+   * @return the tensor [ ] [ ]
+   */
+  @Nonnull
+  public static Tensor[][] data(final int items, final int size, final long seed) {
+    final Random random = new Random(seed);
+    final Tensor[][] data = new Tensor[items][];
+    for (int j = 0; j < items; j++) {
+      final double[] values = new double[size];
+      for (int i = 0; i < size; i++) {
+        values[i] = 1.0 + 0.1 * random.nextGaussian();
+      }
+      data[j] = new Tensor[]{new Tensor(values, size)};
+    }
+    return data;
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inputs) {
+    assert 1 == inputs.length;
+    final Result input = inputs[0].addRef();
+    RefUtil.freeRef(inputs);
+    final TensorList data = input.getData();
+    final int length = data.length();
+    final double[] w = weights.getData();
+    final Tensor[] outputs = new Tensor[length];
+    final double[][] residuals = new double[length][];
+    for (int j = 0; j < length; j++) {
+      final Tensor x = data.get(j);
+      final double[] values = x.getData();
+      final double[] residual = new double[w.length];
+      double sum = 0;
+      for (int i = 0; i < w.length; i++) {
+        residual[i] = w[i] - values[i];
+        sum += 0.5 * curvature[i] * residual[i] * residual[i];
+      }
+      x.freeRef();
+      residuals[j] = residual;
+      outputs[j] = new Tensor(new double[]{sum}, 1);
+    }
+    data.freeRef();
+    final boolean alive = !isFrozen() || input.isAlive();
+    return new Result(new TensorArray(outputs), new Accumulator(this.addRef(), input, residuals), alive);
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.add("weights", weights.getJson(resources, dataSerializer));
+    final JsonArray array = new JsonArray();
+    for (double c : curvature) {
+      array.add(c);
+    }
+    json.add("curvature", array);
+    return json;
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    return RefArrays.asList(weights.getData());
+  }
+
+  public void _free() {
+    weights.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  QuadraticTestLayer addRef() {
+    return (QuadraticTestLayer) super.addRef();
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final QuadraticTestLayer layer;
+    private final Result input;
+    private final double[][] residuals;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param layer     the layer
+     * @param input     the input
+     * @param residuals the residuals
+     */
+    public Accumulator(final QuadraticTestLayer layer, final Result input, final double[][] residuals) {
+      this.layer = layer;
+      this.input = input;
+      this.residuals = residuals;
+    }
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      final double[] w = layer.weights.getData();
+      final double[] curvature = layer.curvature;
+      final int length = delta.length();
+      @Nullable final Delta<UUID> weightDelta = layer.isFrozen() ? null : buffer.get(layer.getId(), w);
+      final Tensor[] inputDeltas = new Tensor[length];
+      for (int j = 0; j < length; j++) {
+        final Tensor outputDelta = delta.get(j);
+        final double scale = outputDelta.get(0);
+        outputDelta.freeRef();
+        final double[] gradient = new double[w.length];
+        for (int i = 0; i < w.length; i++) {
+          gradient[i] = scale * curvature[i] * residuals[j][i];
+        }
+        if (null != weightDelta) weightDelta.addInPlace(gradient);
+        for (int i = 0; i < w.length; i++) {
+          gradient[i] = -gradient[i];
+        }
+        inputDeltas[j] = new Tensor(gradient, w.length);
+      }
+      delta.freeRef();
+      if (null != weightDelta) weightDelta.freeRef();
+      if (input.isAlive()) {
+        input.accumulate(buffer, new TensorArray(inputDeltas));
+      } else {
+        RefUtil.freeRef(inputDeltas);
+        buffer.freeRef();
+      }
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      input.freeRef();
+      layer.freeRef();
+    }
+  }
+}
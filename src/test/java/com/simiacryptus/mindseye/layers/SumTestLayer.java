@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sums any number of inputs of equal dimensions, element by element, and passes the output
+ * gradient back to every input unchanged. Used to build test networks whose nodes do not form
+ * a single chain.
+ */
+@SuppressWarnings("serial")
+public class SumTestLayer extends LayerBase {
+
+  /**
+   * Instantiates a new Sum test layer.
+   */
+  public SumTestLayer() {
+    super();
+  }
+
+  /**
+   * Instantiates a new Sum test layer.
+   *
+   * @param json the json
+   */
+  protected SumTestLayer(@Nonnull final JsonObject json) {
+    super(json);
+  }
+
+  /**
+   * From json sum test layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the sum test layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static SumTestLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new SumTestLayer(json);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inputs) {
+    assert 0 < inputs.length;
+    TensorList sum = null;
+    boolean alive = false;
+    for (Result input : inputs) {
+      final TensorList data = input.getData();
+      alive |= input.isAlive();
+      if (null == sum) {
+        sum = data;
+      } else {
+        final TensorList next = sum.add(data);
+        sum.freeRef();
+        sum = next;
+      }
+    }
+    return new Result(sum, new Accumulator(inputs), alive);
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    return super.getJsonStub();
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    return new RefArrayList<>();
+  }
+
+  public void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  SumTestLayer addRef() {
+    return (SumTestLayer) super.addRef();
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final Result[] inputs;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param inputs the inputs
+     */
+    public Accumulator(final Result[] inputs) {
+      this.inputs = inputs;
+    }
+
+    @Override
+    public void accept(@Nonnull DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      for (Result input : inputs) {
+        if (input.isAlive()) {
+          input.accumulate(buffer.addRef(), delta.addRef());
+        }
+      }
+      delta.freeRef();
+      buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      RefUtil.freeRef(inputs);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.network;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.CheckpointLayer;
+import com.simiacryptus.mindseye.layers.LoggingLayer;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.layers.SumTestLayer;
+import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * The type Dag network test.
+ */
+public class DAGNetworkTest {
+
+  /**
+   * Checks that cached output dimensions are recomputed when a nested network changes.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testOutputDimensionsFollowNestedChanges() {
+    final PipelineNetwork nested = new PipelineNetwork(1);
+    nested.add(new LoggingLayer()).freeRef();
+    final PipelineNetwork outer = new PipelineNetwork(1);
+    outer.add(nested.addRef()).freeRef();
+    try {
+      Assertions.assertArrayEquals(new int[]{4}, outer.getOutputDimensions(new int[]{4}));
+      nested.add(new QuadraticTestLayer(4)).freeRef();
+      Assertions.assertArrayEquals(new int[]{1}, outer.getOutputDimensions(new int[]{4}));
+    } finally {
+      outer.freeRef();
+      nested.freeRef();
+    }
+  }
+
+  /**
+   * Checks that wrappers infer output dimensions from the inner layer only when they opt in.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testWrapperOutputDimensionsOptIn() {
+    final CheckpointLayer checkpoint = new CheckpointLayer(new LoggingLayer());
+    final WrapperLayer wrapper = new WrapperLayer(new LoggingLayer());
+    try {
+      Assertions.assertArrayEquals(new int[]{3}, checkpoint.getOutputDimensions(new int[]{3}));
+      Assertions.assertNull(wrapper.getOutputDimensions(new int[]{3}));
+    } finally {
+      checkpoint.freeRef();
+      wrapper.freeRef();
+    }
+  }
+
+  /**
+   * Checks that checkpointing a node, which recomputes its forward pass during backpropagation,
+   * gives the same loss and weight gradients as the uncheckpointed network.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testCheckpointGradientsMatch() {
+    final int size = 6;
+    final QuadraticTestLayer layer = new QuadraticTestLayer(size);
+    final UUID layerId = layer.getId();
+    final PipelineNetwork network = new PipelineNetwork(1);
+    final InnerNode node = network.add(layer);
+    final ArrayTrainable trainable = new ArrayTrainable(QuadraticTestLayer.data(10, size, 1), network.addRef(), 10);
+    try {
+      final PointSample plain = trainable.measure(new TrainingMonitor());
+      node.setCheckpoint(true);
+      final PointSample checkpointed = trainable.measure(new TrainingMonitor());
+      Assertions.assertEquals(plain.getMean(), checkpointed.getMean(), 1e-12);
+      final Delta<UUID> expected = plain.delta.get(layerId);
+      final Delta<UUID> actual = checkpointed.delta.get(layerId);
+      Assertions.assertNotNull(expected);
+      Assertions.assertNotNull(actual);
+      Assertions.assertArrayEquals(expected.getDelta(), actual.getDelta(), 1e-12);
+      expected.freeRef();
+      actual.freeRef();
+      plain.freeRef();
+      checkpointed.freeRef();
+    } finally {
+      trainable.freeRef();
+      node.freeRef();
+      network.freeRef();
+    }
+  }
+
+  /**
+   * Checks that the checkpoint flag of a node survives serialization.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testCheckpointSerialized() {
+    final PipelineNetwork network = new PipelineNetwork(1);
+    final InnerNode checkpointed = network.add(new LoggingLayer());
+    final InnerNode plain = network.add(new LoggingLayer());
+    checkpointed.setCheckpoint(true);
+    final PipelineNetwork copy = (PipelineNetwork) network.copy();
+    try {
+      final DAGNode copiedCheckpointed = copy.getNodeById(checkpointed.getId());
+      final DAGNode copiedPlain = copy.getNodeById(plain.getId());
+      Assertions.assertTrue(((InnerNode) copiedCheckpointed).isCheckpoint());
+      Assertions.assertFalse(((InnerNode) copiedPlain).isCheckpoint());
+      copiedCheckpointed.freeRef();
+      copiedPlain.freeRef();
+    } finally {
+      checkpointed.freeRef();
+      plain.freeRef();
+      copy.freeRef();
+      network.freeRef();
+    }
+  }
+
+  /**
+   * Simplifies a network holding a nested network, a plain wrapper which does not preserve shape,
+   * and a node which does not contribute to the head, and checks that the flattened network has
+   * fewer nodes, no nested networks or wrappers, and the same output.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testSimplifyPreservesOutput() {
+    final int size = 4;
+    final PipelineNetwork nested = new PipelineNetwork(1);
+    nested.add(new WrapperLayer(new QuadraticTestLayer(size))).freeRef();
+    final PipelineNetwork network = new PipelineNetwork(1);
+    final DAGNode input = network.getInput(0);
+    network.add(new QuadraticTestLayer(size), input.addRef()).freeRef();
+    final InnerNode first = network.add(nested, input.addRef());
+    final InnerNode second = network.add(new WrapperLayer(new QuadraticTestLayer(size)), input);
+    network.add(new SumTestLayer(), first, second).freeRef();
+    final PipelineNetwork simplified = network.simplify();
+    final Tensor[][] data = QuadraticTestLayer.data(5, size, 2);
+    try {
+      final RefList<DAGNode> originalNodes = network.getNodes();
+      final RefList<DAGNode> simplifiedNodes = simplified.getNodes();
+      Assertions.assertEquals(5, originalNodes.size());
+      Assertions.assertEquals(4, simplifiedNodes.size());
+      for (int i = 0; i < simplifiedNodes.size(); i++) {
+        final DAGNode node = simplifiedNodes.get(i);
+        final Layer layer = node.getLayer();
+        Assertions.assertFalse(layer instanceof DAGNetwork);
+        Assertions.assertFalse(layer instanceof WrapperLayer);
+        RefUtil.freeRef(layer);
+        node.freeRef();
+      }
+      originalNodes.freeRef();
+      simplifiedNodes.freeRef();
+      for (Tensor[] row : data) {
+        Assertions.assertArrayEquals(evalRow(network, row), evalRow(simplified, row), 0.0);
+      }
+    } finally {
+      RefUtil.freeRef(data);
+      simplified.freeRef();
+      network.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static double[] evalRow(@Nonnull final PipelineNetwork network, @Nonnull final Tensor[] row) {
+    final Result result = network.eval(RefUtil.addRef(row));
+    assert result != null;
+    final TensorList data = result.getData();
+    final Tensor tensor = data.get(0);
+    final double[] values = tensor.getData().clone();
+    tensor.freeRef();
+    data.freeRef();
+    result.freeRef();
+    return values;
+  }
+}
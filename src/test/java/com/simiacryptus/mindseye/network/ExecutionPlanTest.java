@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.network;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.layers.SumTestLayer;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * The type Execution plan test.
+ */
+public class ExecutionPlanTest {
+
+  /**
+   * Evaluates a branching network, including a nested network, through the execution plan and
+   * through a {@link GraphEvaluationContext} as networks were evaluated before plans, and checks
+   * that outputs and weight gradients agree.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testMatchesContextEvaluation() {
+    final int size = 4;
+    final QuadraticTestLayer[] layers = {
+        new QuadraticTestLayer(size), new QuadraticTestLayer(size), new QuadraticTestLayer(size)};
+    final UUID[] ids = new UUID[layers.length];
+    for (int k = 0; k < layers.length; k++) {
+      ids[k] = layers[k].getId();
+      final Tensor weights = layers[k].getWeights();
+      final double[] w = weights.getData();
+      for (int i = 0; i < size; i++) {
+        w[i] = 0.25 * (k + 1) * (i - 1);
+      }
+      weights.freeRef();
+    }
+    final PipelineNetwork nested = new PipelineNetwork(1);
+    nested.add(layers[2]).freeRef();
+    final PipelineNetwork network = new PipelineNetwork(1);
+    final DAGNode input = network.getInput(0);
+    final InnerNode first = network.add(layers[0], input.addRef());
+    final InnerNode second = network.add(layers[1], input.addRef());
+    final InnerNode third = network.add(nested, input);
+    network.add(new SumTestLayer(), first, second, third).freeRef();
+    final Tensor[][] data = QuadraticTestLayer.data(3, size, 1);
+    final Tensor[] column = new Tensor[data.length];
+    for (int j = 0; j < data.length; j++) {
+      column[j] = data[j][0];
+    }
+    final Result planned = network.eval(new ConstantResult(RefUtil.addRef(column)));
+    final DAGNode head = network.getHead();
+    assert head != null;
+    final Result baseline = head.get(network.buildExeCtx(new ConstantResult(column)), null);
+    head.freeRef();
+    final DeltaSet<UUID> plannedBuffer = new DeltaSet<>();
+    final DeltaSet<UUID> baselineBuffer = new DeltaSet<>();
+    try {
+      assert planned != null && baseline != null;
+      final TensorList plannedData = planned.getData();
+      final TensorList baselineData = baseline.getData();
+      Assertions.assertEquals(baselineData.length(), plannedData.length());
+      for (int j = 0; j < plannedData.length(); j++) {
+        final Tensor expected = baselineData.get(j);
+        final Tensor actual = plannedData.get(j);
+        Assertions.assertArrayEquals(expected.getData(), actual.getData(), 1e-12);
+        expected.freeRef();
+        actual.freeRef();
+      }
+      plannedData.freeRef();
+      baselineData.freeRef();
+      planned.accumulate(plannedBuffer.addRef());
+      baseline.accumulate(baselineBuffer.addRef());
+      for (UUID id : ids) {
+        final Delta<UUID> expected = baselineBuffer.get(id);
+        final Delta<UUID> actual = plannedBuffer.get(id);
+        Assertions.assertNotNull(expected);
+        Assertions.assertNotNull(actual);
+        Assertions.assertArrayEquals(expected.getDelta(), actual.getDelta(), 1e-12);
+        expected.freeRef();
+        actual.freeRef();
+      }
+    } finally {
+      plannedBuffer.freeRef();
+      baselineBuffer.freeRef();
+      RefUtil.freeRef(planned);
+      RefUtil.freeRef(baseline);
+      network.freeRef();
+    }
+  }
+
+  /**
+   * Evaluates a network whose head is a frozen layer reading a constant, so that the whole graph is
+   * folded, and checks that editing the frozen weights or the constant in place invalidates the
+   * folded value.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testFoldedConstantTracksInPlaceEdits() {
+    final int size = 3;
+    final QuadraticTestLayer layer = new QuadraticTestLayer(size);
+    layer.freeze();
+    final Tensor weights = layer.getWeights();
+    final Tensor constant = new Tensor(new double[]{1, 2, 3}, size);
+    final PipelineNetwork network = new PipelineNetwork(1);
+    network.add(layer, network.constValue(constant.addRef())).freeRef();
+    try {
+      final double initial = evalScalar(network);
+      Assertions.assertEquals(initial, evalScalar(network), 0.0);
+      weights.set(0, weights.get(0) + 1);
+      final double editedWeights = evalScalar(network);
+      Assertions.assertNotEquals(initial, editedWeights);
+      Assertions.assertEquals(editedWeights, evalScalar(network), 0.0);
+      constant.fill(0);
+      Assertions.assertNotEquals(editedWeights, evalScalar(network));
+    } finally {
+      weights.freeRef();
+      constant.freeRef();
+      network.freeRef();
+    }
+  }
+
+  private static double evalScalar(@Nonnull final PipelineNetwork network) {
+    final Result result = network.eval(new ConstantResult(new Tensor(1)));
+    assert result != null;
+    final TensorList data = result.getData();
+    final Tensor tensor = data.get(0);
+    final double value = tensor.get(0);
+    tensor.freeRef();
+    data.freeRef();
+    result.freeRef();
+    return value;
+  }
+}
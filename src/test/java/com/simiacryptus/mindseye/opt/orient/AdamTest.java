@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The type Adam test.
+ */
+public class AdamTest {
+
+  /**
+   * Trains with one iteration per sample, so the trainer resets the orientation before every
+   * step, and checks that the moment statistics survive the resets.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testMomentsPersistAcrossReseeds() {
+    final int size = 5;
+    final int iterations = 10;
+    final ArrayTrainable trainable = new ArrayTrainable(QuadraticTestLayer.data(20, size, 1), new QuadraticTestLayer(size), 20);
+    final PointSample initial = trainable.measure(new TrainingMonitor());
+    final double initialLoss = initial.getMean();
+    initial.freeRef();
+    final Adam adam = new Adam();
+    final IterativeTrainer trainer = new IterativeTrainer(trainable);
+    trainer.setOrientation(adam.addRef());
+    trainer.setLineSearchFactory(name -> new StaticLearningRate(0.05));
+    trainer.setIterationsPerSample(1);
+    trainer.setMaxIterations(iterations);
+    final double finalLoss = trainer.run();
+    final int completed = trainer.getCurrentIteration().get();
+    trainer.freeRef();
+    try {
+      Assertions.assertEquals(iterations, completed);
+      Assertions.assertEquals(completed, adam.getSteps());
+      final double[] m = adam.getFirstMoment();
+      final double[] v = adam.getSecondMoment();
+      Assertions.assertNotNull(m);
+      Assertions.assertNotNull(v);
+      for (int i = 0; i < size; i++) {
+        Assertions.assertTrue(Math.abs(m[i]) > 0);
+        Assertions.assertTrue(v[i] > 0);
+      }
+      Assertions.assertTrue(finalLoss < 0.5 * initialLoss, finalLoss + " >= 0.5 * " + initialLoss);
+      adam.clearState();
+      Assertions.assertEquals(0, adam.getSteps());
+    } finally {
+      adam.freeRef();
+    }
+  }
+}
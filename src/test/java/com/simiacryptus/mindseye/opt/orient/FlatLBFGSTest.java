@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The type Flat lbfgs test.
+ */
+public class FlatLBFGSTest {
+
+  /**
+   * Checks that a smaller history limit set between runs takes effect when the trainer resets the
+   * orientation.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testMaxHistoryAppliedOnReset() {
+    final int size = 8;
+    final ArrayTrainable trainable = new ArrayTrainable(QuadraticTestLayer.data(20, size, 1), new QuadraticTestLayer(size), 20);
+    final FlatLBFGS lbfgs = new FlatLBFGS();
+    try {
+      train(trainable.addRef(), lbfgs.addRef(), 6);
+      Assertions.assertTrue(lbfgs.getHistorySize() > 2, "history = " + lbfgs.getHistorySize());
+      lbfgs.setMaxHistory(2);
+      train(trainable.addRef(), lbfgs.addRef(), 6);
+      Assertions.assertEquals(2, lbfgs.getHistorySize());
+    } finally {
+      lbfgs.freeRef();
+      trainable.freeRef();
+    }
+  }
+
+
+  /**
+   * Checks that, with a minimum history above one, the first pairs are kept while gradient
+   * directions are taken, so that quasi-Newton directions follow once enough pairs exist.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testMinHistoryCollectsPairs() {
+    final int size = 8;
+    final ArrayTrainable trainable = new ArrayTrainable(QuadraticTestLayer.data(20, size, 1), new QuadraticTestLayer(size), 20);
+    final FlatLBFGS lbfgs = new FlatLBFGS();
+    lbfgs.setMinHistory(3);
+    final List<String> types = new ArrayList<>();
+    final IterativeTrainer trainer = new IterativeTrainer(trainable);
+    trainer.setOrientation(lbfgs.addRef());
+    trainer.setLineSearchFactory(name -> {
+      types.add(name.toString());
+      return new StaticLearningRate(0.05);
+    });
+    trainer.setMaxIterations(8);
+    try {
+      trainer.run();
+      Assertions.assertEquals("GD", types.get(0));
+      Assertions.assertTrue(types.contains("LBFGS"), "types = " + types);
+      Assertions.assertTrue(lbfgs.getHistorySize() >= 3, "history = " + lbfgs.getHistorySize());
+    } finally {
+      trainer.freeRef();
+      lbfgs.freeRef();
+    }
+  }
+
+  private static double train(final ArrayTrainable trainable, final FlatLBFGS lbfgs, final int iterations) {
+    final IterativeTrainer trainer = new IterativeTrainer(trainable);
+    trainer.setOrientation(lbfgs);
+    trainer.setLineSearchFactory(name -> new StaticLearningRate(0.05));
+    trainer.setMaxIterations(iterations);
+    final double loss = trainer.run();
+    trainer.freeRef();
+    return loss;
+  }
+}
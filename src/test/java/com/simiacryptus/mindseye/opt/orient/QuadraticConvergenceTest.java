@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Trains each orientation strategy on a small {@link QuadraticTestLayer} problem and checks that
+ * it closes nearly all of the gap between the initial loss and the known minimum.
+ */
+public class QuadraticConvergenceTest {
+
+  private static final int SIZE = 5;
+  private static final int ITEMS = 20;
+
+  /**
+   * Flat lbfgs, with the default line search.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testFlatLBFGS() {
+    assertConverges(new FlatLBFGS(), 0, 30);
+  }
+
+  /**
+   * Conjugate gradient, with the default line search.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testConjugateGradient() {
+    assertConverges(new ConjugateGradient(), 0, 30);
+  }
+
+  /**
+   * Adam.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testAdam() {
+    assertConverges(new Adam(), 0.05, 100);
+  }
+
+  /**
+   * Adam w.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testAdamW() {
+    assertConverges(new AdamW(), 0.05, 100);
+  }
+
+  /**
+   * Rms prop.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testRMSProp() {
+    assertConverges(new RMSProp(), 0.02, 100);
+  }
+
+  /**
+   * Ada grad.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testAdaGrad() {
+    assertConverges(new AdaGrad(), 0.3, 100);
+  }
+
+  /**
+   * Trains the strategy from zero weights and checks the final loss against the minimum.
+   *
+   * @param orientation the orientation
+   * @param rate        the static learning rate, or zero for the trainer's default line search
+   * @param iterations  the iterations
+   */
+  private static void assertConverges(final OrientationStrategy<?> orientation, final double rate, final int iterations) {
+    final Tensor[][] data = QuadraticTestLayer.data(ITEMS, SIZE, 1);
+    final double minimum = minimumLoss(data);
+    final ArrayTrainable trainable = new ArrayTrainable(data, new QuadraticTestLayer(SIZE), ITEMS);
+    final PointSample initial = trainable.measure(new TrainingMonitor());
+    final double initialLoss = initial.getMean();
+    initial.freeRef();
+    final IterativeTrainer trainer = new IterativeTrainer(trainable);
+    trainer.setOrientation(orientation);
+    if (0 < rate) trainer.setLineSearchFactory(name -> new StaticLearningRate(rate));
+    trainer.setMaxIterations(iterations);
+    final double finalLoss = trainer.run();
+    trainer.freeRef();
+    Assertions.assertTrue(finalLoss - minimum < 0.01 * (initialLoss - minimum),
+        finalLoss + " not within 1% of " + minimum + " from " + initialLoss);
+  }
+
+  /**
+   * The loss at the optimum, where each weight is the mean of its input coordinate: the
+   * curvature-weighted variance of the data, halved.
+   *
+   * @param data the data
+   * @return the minimum loss
+   */
+  private static double minimumLoss(final Tensor[][] data) {
+    final double[] mean = new double[SIZE];
+    final double[] square = new double[SIZE];
+    for (Tensor[] row : data) {
+      final double[] values = row[0].getData();
+      for (int i = 0; i < SIZE; i++) {
+        mean[i] += values[i] / data.length;
+        square[i] += values[i] * values[i] / data.length;
+      }
+    }
+    double loss = 0;
+    for (int i = 0; i < SIZE; i++) {
+      loss += 0.5 * (1.0 + i) * (square[i] - mean[i] * mean[i]);
+    }
+    return loss;
+  }
+}
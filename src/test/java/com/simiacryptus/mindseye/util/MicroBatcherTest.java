@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * The type Micro batcher test.
+ */
+public class MicroBatcherTest {
+
+  /**
+   * Submits a burst of items and checks that they are evaluated in batches no larger than the
+   * limit, and that each caller receives the output for its own item.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testBatchesPreserveOrder() throws Exception {
+    final int items = 10;
+    final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    final MicroBatcher batcher = new MicroBatcher(new QuadraticTestLayer(1) {
+      @Nonnull
+      @Override
+      public Result eval(@Nonnull final Result... inputs) {
+        final TensorList data = inputs[0].getData();
+        batchSizes.add(data.length());
+        data.freeRef();
+        return super.eval(inputs);
+      }
+    }, 4, 200, TimeUnit.MILLISECONDS);
+    try {
+      final List<CompletableFuture<Tensor>> futures = new ArrayList<>();
+      for (int i = 0; i < items; i++) {
+        futures.add(batcher.submit(new Tensor(new double[]{i}, 1)));
+      }
+      for (int i = 0; i < items; i++) {
+        final Tensor output = futures.get(i).get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(0.5 * i * i, output.get(0), 1e-12);
+        output.freeRef();
+      }
+      int total = 0;
+      for (int size : batchSizes) {
+        Assertions.assertTrue(0 < size && size <= 4, "batch sizes = " + batchSizes);
+        total += size;
+      }
+      Assertions.assertEquals(items, total);
+      Assertions.assertTrue(batchSizes.size() < items, "batch sizes = " + batchSizes);
+    } finally {
+      batcher.freeRef();
+    }
+  }
+
+  /**
+   * Frees batchers while other threads are submitting to them, and checks that every accepted
+   * request is completed, either with an output or with an exception, rather than left pending.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testConcurrentSubmitAndFree() throws Exception {
+    final int threads = 4;
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 20; round++) {
+        final MicroBatcher batcher = new MicroBatcher(new QuadraticTestLayer(1), 8, 1, TimeUnit.MILLISECONDS);
+        final List<CompletableFuture<Tensor>> accepted = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(threads);
+        final List<Future<?>> submitters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          submitters.add(pool.submit(() -> {
+            started.countDown();
+            try {
+              while (true) {
+                accepted.add(batcher.submit(new Tensor(new double[]{1}, 1)));
+              }
+            } catch (IllegalStateException e) {
+              // The batcher was closed
+            }
+          }));
+        }
+        started.await();
+        batcher.freeRef();
+        for (Future<?> submitter : submitters) {
+          submitter.get(10, TimeUnit.SECONDS);
+        }
+        for (CompletableFuture<Tensor> future : accepted) {
+          try {
+            future.get(10, TimeUnit.SECONDS).freeRef();
+          } catch (ExecutionException e) {
+            Assertions.assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+          } catch (TimeoutException e) {
+            Assertions.fail("A request accepted before close was never completed");
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
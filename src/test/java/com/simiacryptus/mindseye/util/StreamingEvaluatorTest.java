@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.QuadraticTestLayer;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The type Streaming evaluator test.
+ */
+public class StreamingEvaluatorTest {
+
+  /**
+   * Maps more items than fit in the in-flight batches, with a partial last batch, and checks that
+   * the outputs come back complete and in input order.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testOutputsKeepInputOrder() {
+    final int items = 23;
+    final Tensor[] outputs = StreamingEvaluator.map(new QuadraticTestLayer(1),
+        RefIntStream.range(0, items).mapToObj(i -> new Tensor(new double[]{i}, 1)), 4, 2)
+        .toArray(Tensor[]::new);
+    try {
+      Assertions.assertEquals(items, outputs.length);
+      for (int i = 0; i < items; i++) {
+        Assertions.assertEquals(0.5 * i * i, outputs[i].get(0), 1e-12);
+      }
+    } finally {
+      RefUtil.freeRef(outputs);
+    }
+  }
+
+  /**
+   * Takes a few outputs from an unbounded source and closes the stream, and checks that the
+   * producer stops pulling from the source shortly afterwards.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testCloseStopsProducer() throws InterruptedException {
+    final AtomicInteger pulled = new AtomicInteger();
+    final Tensor[] outputs = StreamingEvaluator.map(new QuadraticTestLayer(1),
+        RefIntStream.range(0, Integer.MAX_VALUE).mapToObj(i -> {
+          pulled.incrementAndGet();
+          return new Tensor(new double[]{i}, 1);
+        }), 4, 2)
+        .limit(5).toArray(Tensor[]::new);
+    RefUtil.freeRef(outputs);
+    Thread.sleep(500);
+    final int stopped = pulled.get();
+    Thread.sleep(500);
+    Assertions.assertEquals(stopped, pulled.get());
+    Assertions.assertTrue(stopped < 1000, "pulled = " + stopped);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.SerialPrecision;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSupplier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The type Tiered sample cache test.
+ */
+public class TieredSampleCacheTest {
+
+  /**
+   * Wraps fixed samples with budgets too small to hold any of them, and checks that every sample
+   * is still served from the last tier with its data and tensor id.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testFixedSamplesAreNeverDropped() {
+    final int count = 5;
+    final Tensor[][] samples = new Tensor[count][];
+    final UUID[] ids = new UUID[count];
+    for (int i = 0; i < count; i++) {
+      samples[i] = new Tensor[]{new Tensor(new double[]{i, i + 0.5, -i}, 3)};
+      ids[i] = samples[i][0].getId();
+    }
+    final TieredSampleCache cache = new TieredSampleCache(0, 0, SerialPrecision.Double);
+    final RefList<RefSupplier<Tensor[]>> suppliers = cache.wrap(samples);
+    try {
+      for (int pass = 0; pass < 2; pass++) {
+        for (int i = 0; i < count; i++) {
+          final RefSupplier<Tensor[]> supplier = suppliers.get(i);
+          final Tensor[] sample = supplier.get();
+          supplier.freeRef();
+          Assertions.assertArrayEquals(new double[]{i, i + 0.5, -i}, sample[0].getData());
+          Assertions.assertEquals(ids[i], sample[0].getId());
+          sample[0].freeRef();
+        }
+      }
+      Assertions.assertEquals(0, cache.getMisses());
+    } finally {
+      suppliers.freeRef();
+      cache.freeRef();
+    }
+  }
+
+  /**
+   * Blocks the generator of one sample and checks that other samples can be read meanwhile, and
+   * that concurrent reads of the blocked sample share a single regeneration.
+   */
+  @Test
+  @Tag("UnitTest")
+  public void testGenerationOutsideLock() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger generated = new AtomicInteger();
+    final RefList<Supplier<Tensor[]>> generators = new RefArrayList<>();
+    generators.add(() -> {
+      generated.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return new Tensor[]{new Tensor(new double[]{1}, 1)};
+    });
+    generators.add(() -> new Tensor[]{new Tensor(new double[]{2}, 1)});
+    final TieredSampleCache cache = new TieredSampleCache(1 << 20, 0, SerialPrecision.Double);
+    final RefList<RefSupplier<Tensor[]>> suppliers = cache.wrap(generators);
+    final ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      final List<Future<Double>> blocked = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        blocked.add(pool.submit(() -> read(cache, 0)));
+      }
+      while (0 == generated.get()) {
+        Thread.sleep(1);
+      }
+      Assertions.assertEquals(2.0, pool.submit(() -> read(cache, 1)).get(10, TimeUnit.SECONDS), 0.0);
+      release.countDown();
+      for (Future<Double> future : blocked) {
+        Assertions.assertEquals(1.0, future.get(10, TimeUnit.SECONDS), 0.0);
+      }
+      Assertions.assertEquals(1, generated.get());
+    } finally {
+      release.countDown();
+      pool.shutdownNow();
+      suppliers.freeRef();
+      cache.freeRef();
+    }
+  }
+
+  private static double read(@Nonnull final TieredSampleCache cache, final int slot) {
+    final Tensor[] sample = cache.get(slot);
+    assert sample != null;
+    final double value = sample[0].get(0);
+    RefUtil.freeRef(sample);
+    return value;
+  }
+}